@@ -0,0 +1,276 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * An on-disk cache of CurseForge API responses.
+ *
+ * Every response is stored under a key made of the API's base URL, its
+ * endpoint and query parameters, and the fields that were kept of it (see
+ * projection), in a file named after the SHA-1 of the key. A response from
+ * another API, such as a local stand-in given with --api-url, or one that
+ * kept fewer fields, is never served in place of another. Responses of the
+ * bulk endpoints are split up and stored per mod or per file, under the key
+ * of the single-item endpoint, so that a later run asking for a different set
+ * of IDs can still use them.
+ *
+ * An entry is fresh for the TTL of its endpoint (see ttl()). A stale entry
+ * that came with an ETag or Last-Modified header is revalidated with a
+ * conditional request; a 304 answer makes it fresh again without sending the
+ * body. An update check revalidates even fresh entries, and does not use the
+ * cached mod objects at all, since it has to see every mod's current
+ * dateModified (see ModManager.getModsBulk). With --offline every cached
+ * entry is used regardless of its age and nothing is requested.
+ *
+ * Like the jar cache, the least recently used entries are evicted once the
+ * cache grows past maxBytes, and hit and miss counts are added up across runs
+ * in stats.json (see cachedir).
+ */
+public class apicache {
+
+    // The cache directory, or null if the cache is disabled
+    public static Path dir = Paths.get(System.getProperty("user.home"), ".cache", "mcmodmanager", "api");
+
+    // The cache is trimmed back to this many bytes at the end of every run
+    public static long maxBytes = 64L * 1024 * 1024;
+
+    // Serve every request from the cache and never contact CurseForge
+    public static boolean offline = false;
+
+    // File objects do not change once they are published. Mod objects and file
+    // listings change whenever a new file is released.
+    public static final long FILE_TTL = 7 * 24 * 60 * 60 * 1000L;
+    public static final long MOD_TTL = 30 * 60 * 1000L;
+    public static final long DEFAULT_TTL = 10 * 60 * 1000L;
+
+    // The files in the cache directory that are cached responses
+    private static final String ENTRY_GLOB = "*.json";
+
+    // Counts for this run, added to stats.json by saveStats()
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong revalidated = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * What a cached response is stored under.
+     *
+     * @param baseUrl the base URL of the API the response came from
+     * @param path    the endpoint and query parameters
+     * @param fields  the fields that were kept of the response, or null if it
+     *                was kept whole
+     */
+    public record Key(String baseUrl, String path, projection.Fields fields) {
+
+        @Override
+        public String toString() {
+            return baseUrl + path + (fields == null ? "" : " " + fields);
+        }
+
+    }
+
+    /**
+     * A cached response.
+     *
+     * @param body         the parsed response body
+     * @param storedAt     when the response was received or last revalidated,
+     *                     in milliseconds since the epoch
+     * @param etag         the ETag header of the response, or null
+     * @param lastModified the Last-Modified header of the response, or null
+     */
+    public record Entry(JSONObject body, long storedAt, String etag, String lastModified) {
+
+        public boolean isFresh(Key key) {
+            return System.currentTimeMillis() - storedAt < ttl(key);
+        }
+
+        public boolean canRevalidate() {
+            return etag != null || lastModified != null;
+        }
+
+    }
+
+    /**
+     * @return how long a response for the given key stays fresh, in
+     *         milliseconds
+     */
+    public static long ttl(Key key) {
+
+        if (key.path().startsWith("/v1/mods/files/")) {
+            return FILE_TTL;
+        } else if (key.path().matches("/v1/mods/\\d+(/files.*)?")) {
+            return MOD_TTL;
+        }
+        return DEFAULT_TTL;
+
+    }
+
+    /**
+     * @return the cached response for key, fresh or not, or null if there is
+     *         none
+     */
+    public static Entry get(Key key) {
+
+        if (dir == null) {
+            return null;
+        }
+
+        try (Reader reader = Files.newBufferedReader(entryPath(key), StandardCharsets.UTF_8)) {
+
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            if (!key.toString().equals(json.get("key"))) {
+                return null;
+            }
+            return new Entry((JSONObject) json.get("body"), (long) json.get("storedAt"), (String) json.get("etag"),
+                    (String) json.get("lastModified"));
+
+        } catch (Exception e) {
+            // Not cached, or an unreadable entry that will be overwritten
+            return null;
+        }
+
+    }
+
+    /**
+     * Caches a response. Failing to cache a response is not an error; it just
+     * means it will be requested again next time.
+     */
+    public static void put(Key key, JSONObject body, String etag, String lastModified) {
+
+        if (dir == null) {
+            return;
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("key", key.toString());
+        json.put("storedAt", System.currentTimeMillis());
+        json.put("etag", etag);
+        json.put("lastModified", lastModified);
+        json.put("body", body);
+
+        try {
+
+            Files.createDirectories(dir);
+
+            // Write under a name no other thread or process uses, then rename, so
+            // that readers never see a half-written entry. A cache entry is not
+            // worth an fsync.
+            Path entry = entryPath(key);
+            Path temp = dir.resolve(entry.getFileName() + "." + ProcessHandle.current().pid() + "-"
+                    + Thread.currentThread().getId() + ".tmp");
+            Files.writeString(temp, json.toJSONString(), StandardCharsets.UTF_8);
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+
+        } catch (IOException e) {
+            System.out.println("Could not cache the response for " + key + ": " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Marks a stale entry as fresh again after the server confirmed it has not
+     * changed.
+     */
+    public static void refresh(Key key, Entry entry) {
+        put(key, entry.body(), entry.etag(), entry.lastModified());
+    }
+
+    public static void countHit() {
+        hits.incrementAndGet();
+        metrics.count("api_cache_total", "result", "hit", 1);
+    }
+
+    public static void countRevalidated() {
+        revalidated.incrementAndGet();
+        metrics.count("api_cache_total", "result", "revalidated", 1);
+    }
+
+    public static void countMiss() {
+        misses.incrementAndGet();
+        metrics.count("api_cache_total", "result", "miss", 1);
+    }
+
+    /**
+     * @return a one line summary of how the cache was used during this run
+     */
+    public static String summary() {
+        return String.format("API cache: %d hits, %d revalidated, %d misses", hits.get(), revalidated.get(),
+                misses.get());
+    }
+
+    /**
+     * Adds the counts from this run to stats.json and evicts the least recently
+     * stored entries if the cache is over its size limit.
+     */
+    public static void saveStats() {
+
+        if (dir == null || hits.get() + revalidated.get() + misses.get() == 0) {
+            return;
+        }
+
+        try {
+            cachedir.saveStats(dir, ENTRY_GLOB, maxBytes,
+                    Map.of("hits", hits, "revalidated", revalidated, "misses", misses));
+        } catch (IOException e) {
+            System.out.println("Could not save the API cache stats: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Prints the hit rate and size of the cache.
+     */
+    public static void printStats() throws IOException {
+
+        if (dir == null) {
+            System.out.println("The API cache is disabled");
+            return;
+        }
+
+        JSONObject stats = cachedir.readStats(dir);
+        long hitCount = (long) stats.getOrDefault("hits", 0L);
+        long revalidatedCount = (long) stats.getOrDefault("revalidated", 0L);
+        long missCount = (long) stats.getOrDefault("misses", 0L);
+        long total = hitCount + revalidatedCount + missCount;
+
+        List<Path> entries = cachedir.entries(dir, ENTRY_GLOB);
+        long size = cachedir.size(entries);
+
+        System.out.println("API cache: " + dir);
+        System.out.printf("    %d responses, %.1f MB of %.1f MB%n", entries.size(), size / 1048576.0,
+                maxBytes / 1048576.0);
+        System.out.printf("    %d hits, %d revalidated, %d misses (%.1f%% of lookups needed no download)%n",
+                hitCount, revalidatedCount, missCount,
+                total == 0 ? 0 : 100.0 * (hitCount + revalidatedCount) / total);
+
+    }
+
+    private static Path entryPath(Key key) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return dir.resolve(HexFormat.of().formatHex(digest.digest(key.toString().getBytes(StandardCharsets.UTF_8))) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
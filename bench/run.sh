@@ -0,0 +1,18 @@
+#!/bin/sh
+# Runs the JMH benchmarks and saves the results as JSON in bench/results/,
+# named after the current commit and time, so that runs can be compared.
+# Any arguments are passed on to JMH, for example a benchmark name pattern or
+# -p mods=10,100 to run fewer sizes.
+#
+# Build the benchmarks first with: mvn -f bench/pom.xml package
+
+set -e
+
+bench=$(cd "$(dirname "$0")" && pwd)
+mkdir -p "$bench/results"
+
+commit=$(git -C "$bench" rev-parse --short HEAD 2>/dev/null || echo unknown)
+result="$bench/results/$(date +%Y%m%d-%H%M%S)-$commit.json"
+
+java -jar "$bench/target/benchmarks.jar" -rf json -rff "$result" "$@"
+echo "Results written to $result"
@@ -0,0 +1,157 @@
+package bench;
+
+import java.io.Reader;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Calls into mcmodmanager.
+ *
+ * mcmodmanager's classes live in the default package, which cannot be
+ * imported from a named package, and JMH refuses benchmarks in the default
+ * package. So the benchmarks reach mcmodmanager through the method handles
+ * here instead (ModManager is not even public). They are looked up once and
+ * held in static final fields, which the JIT compiles down to direct calls,
+ * so they add nothing measurable.
+ */
+public class App {
+
+    private static final Class<?> MOD_MANAGER = find("ModManager");
+    private static final Class<?> CONFIG = find("config");
+    private static final Class<?> MOD = find("config$Mod");
+    private static final Class<?> PROJECTION = find("projection");
+    private static final Class<?> FIELDS = find("projection$Fields");
+
+    private static final MethodHandle LOAD = handle(() -> in(CONFIG).findStatic(CONFIG, "load",
+            MethodType.methodType(CONFIG, String.class)));
+    private static final MethodHandle TO_JSON_STRING = handle(() -> in(CONFIG).findVirtual(CONFIG, "toJSONString",
+            MethodType.methodType(String.class)));
+    private static final MethodHandle FLUSH = handle(() -> in(CONFIG).findVirtual(CONFIG, "flush",
+            MethodType.methodType(void.class)));
+    private static final MethodHandle ADD_MOD = handle(() -> in(CONFIG).findVirtual(CONFIG, "addMod",
+            MethodType.methodType(void.class, MOD)));
+    private static final MethodHandle REMOVE_MOD = handle(() -> in(CONFIG).findVirtual(CONFIG, "removeMod",
+            MethodType.methodType(MOD, String.class)));
+    private static final MethodHandle SET_CFG = handle(() -> in(MOD_MANAGER).findStaticSetter(MOD_MANAGER, "cfg",
+            CONFIG));
+    private static final MethodHandle SAVE_UPDATE_INFO = handle(() -> in(MOD_MANAGER).findStatic(MOD_MANAGER,
+            "saveUpdateInfo", MethodType.methodType(void.class, String.class, String.class, String.class,
+                    String.class, long.class, String.class, Long.class)));
+    private static final MethodHandle DOWNLOAD_FILE = handle(() -> in(MOD_MANAGER).findStatic(MOD_MANAGER,
+            "downloadFile", MethodType.methodType(String.class, String.class, String.class, String.class)));
+    private static final MethodHandle FIELDS_OF = handle(() -> in(FIELDS).findStatic(FIELDS, "of",
+            MethodType.methodType(FIELDS, String.class, String[].class)));
+    private static final MethodHandle PARSE = handle(() -> in(PROJECTION).findStatic(PROJECTION, "parse",
+            MethodType.methodType(org.json.simple.JSONObject.class, Reader.class, FIELDS)));
+    private static final MethodHandle FILE_FIELDS = handle(() -> in(MOD_MANAGER).findStaticGetter(MOD_MANAGER,
+            "FILE_FIELDS", String[].class));
+
+    /** config.load(path) */
+    public static Object loadConfig(String path) throws Exception {
+        return call(() -> LOAD.invoke(path));
+    }
+
+    /** cfg.toJSONString() */
+    public static String toJSONString(Object cfg) throws Exception {
+        return (String) call(() -> TO_JSON_STRING.invoke(cfg));
+    }
+
+    /** cfg.flush() */
+    public static void flush(Object cfg) throws Exception {
+        call(() -> {
+            FLUSH.invoke(cfg);
+            return null;
+        });
+    }
+
+    /** cfg.addMod(mod) */
+    public static void addMod(Object cfg, Object mod) throws Exception {
+        call(() -> {
+            ADD_MOD.invoke(cfg, mod);
+            return null;
+        });
+    }
+
+    /** cfg.removeMod(modID) */
+    public static Object removeMod(Object cfg, String modID) throws Exception {
+        return call(() -> REMOVE_MOD.invoke(cfg, modID));
+    }
+
+    /** ModManager.cfg = cfg */
+    public static void setConfig(Object cfg) throws Exception {
+        call(() -> {
+            SET_CFG.invoke(cfg);
+            return null;
+        });
+    }
+
+    /** ModManager.saveUpdateInfo(...) */
+    public static void saveUpdateInfo(String modID, String fileName, String downloadLink, String newVersion,
+            long fileID, String sha1, Long fileLength) throws Exception {
+        call(() -> {
+            SAVE_UPDATE_INFO.invoke(modID, fileName, downloadLink, newVersion, fileID, sha1, fileLength);
+            return null;
+        });
+    }
+
+    /** ModManager.downloadFile(url, file, expectedSha1) */
+    public static String downloadFile(String url, String file, String expectedSha1) throws Exception {
+        return (String) call(() -> DOWNLOAD_FILE.invoke(url, file, expectedSha1));
+    }
+
+    /** projection.Fields.of(prefix, ModManager.FILE_FIELDS) */
+    public static Object fileFields(String prefix) throws Exception {
+        return call(() -> FIELDS_OF.invoke(prefix, (String[]) FILE_FIELDS.invoke()));
+    }
+
+    /** projection.parse(reader, fields) */
+    public static Object parse(Reader reader, Object fields) throws Exception {
+        return call(() -> PARSE.invoke(reader, fields));
+    }
+
+    private interface Call {
+        Object run() throws Throwable;
+    }
+
+    private static Object call(Call call) throws Exception {
+
+        try {
+            return call.run();
+        } catch (Exception | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    private interface Lookup {
+        MethodHandle find() throws ReflectiveOperationException;
+    }
+
+    private static MethodHandle handle(Lookup lookup) {
+
+        try {
+            return lookup.find();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("mcmodmanager has changed; update bench/App.java", e);
+        }
+
+    }
+
+    private static MethodHandles.Lookup in(Class<?> target) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(target, MethodHandles.lookup());
+    }
+
+    private static Class<?> find(String name) {
+
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,106 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading, serializing and changing mcmodmanager.json with the given number
+ * of mods, for both storage backends. The change benchmarks include the flush,
+ * so they measure what one -c result or one -r costs on disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConfigBenchmark {
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int mods;
+
+    @Param({ "json", "journal" })
+    public String storage;
+
+    private Path dir;
+    private String path;
+    private Object cfg;
+    private String middleModID;
+
+    @Setup
+    public void setup() throws Exception {
+
+        dir = Files.createTempDirectory("mcmodmanager-bench");
+        path = dir.resolve("mcmodmanager.json").toString();
+        Files.writeString(Path.of(path), Fixtures.configFile(mods, storage));
+
+        cfg = App.loadConfig(path);
+        middleModID = String.valueOf(mods / 2 + 1);
+
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+
+    }
+
+    @Benchmark
+    public Object load() throws Exception {
+        return App.loadConfig(path);
+    }
+
+    @Benchmark
+    public String serialize() throws Exception {
+        return App.toJSONString(cfg);
+    }
+
+    /**
+     * What checkUpdates does for one mod with an update: saveUpdateInfo, then
+     * the flush at the end of the run.
+     */
+    @Benchmark
+    public void saveUpdateInfo() throws Exception {
+
+        App.setConfig(cfg);
+        App.saveUpdateInfo(middleModID, "examplemod-new.jar", "https://edge.forgecdn.net/files/new.jar",
+                "1.20.2", 123456L, "0123456789abcdef0123456789abcdef01234567", 1_000_000L);
+        App.flush(cfg);
+
+    }
+
+    /**
+     * Removes a mod and adds it back, flushing after each, so that every
+     * invocation starts from the same registry.
+     */
+    @Benchmark
+    public void removeAndAddMod() throws Exception {
+
+        Object removed = App.removeMod(cfg, middleModID);
+        App.flush(cfg);
+        App.addMod(cfg, removed);
+        App.flush(cfg);
+
+    }
+
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ModManager.downloadFile, including SHA-1 verification and the rename into
+ * place, against a local HTTP server that serves a file of the given size from
+ * memory. Divide the size by the average time to get the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    @Param({ "1", "16", "64" })
+    public int megabytes;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private String url;
+    private String sha1;
+    private Path dir;
+    private Path target;
+
+    @Setup
+    public void setup() throws Exception {
+
+        byte[] body = new byte[megabytes * 1024 * 1024];
+        new Random(megabytes).nextBytes(body);
+        sha1 = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(body));
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/file.jar", exchange -> {
+            exchange.getResponseHeaders().set("ETag", "\"" + sha1 + "\"");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.jar";
+
+        dir = Files.createTempDirectory("mcmodmanager-bench");
+        target = dir.resolve("file.jar");
+
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+
+        server.stop(0);
+        executor.shutdown();
+        Files.deleteIfExists(target);
+        Files.deleteIfExists(dir);
+
+    }
+
+    @Benchmark
+    public String downloadFile() throws Exception {
+        return App.downloadFile(url, target.toString(), sha1);
+    }
+
+}
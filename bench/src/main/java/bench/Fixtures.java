@@ -0,0 +1,155 @@
+package bench;
+
+import java.util.Random;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Generates mcmodmanager.json files and CurseForge responses of any size for
+ * the benchmarks. The responses have the same shape and roughly the same size
+ * per object as real CurseForge responses, including the fields mcmodmanager
+ * never reads (sortable game versions, modules and so on), since skipping
+ * those is part of what is being measured.
+ */
+public class Fixtures {
+
+    /**
+     * @return a mcmodmanager.json with the given number of mods, saved with
+     *         the given storage mode
+     */
+    @SuppressWarnings("unchecked")
+    public static String configFile(int mods, String storageMode) {
+
+        JSONArray array = new JSONArray();
+        for (int i = 1; i <= mods; i++) {
+            long fileID = i * 100L;
+            JSONObject mod = new JSONObject();
+            mod.put("modID", String.valueOf(i));
+            mod.put("name", "Example Mod " + i);
+            mod.put("currentVersion", "1.20.1");
+            mod.put("fileName", "examplemod-" + i + "-" + fileID + ".jar");
+            mod.put("fileID", fileID);
+            mod.put("downloadLink",
+                    "https://edge.forgecdn.net/files/" + fileID / 1000 + "/" + fileID % 1000 + "/examplemod.jar");
+            mod.put("sha1", sha1(fileID));
+            mod.put("fileLength", 1_000_000L + i);
+            array.add(mod);
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("apiKey", "benchmark");
+        json.put("serverVersion", "1.20.1");
+        json.put("storage", storageMode);
+        json.put("mods", array);
+        return json.toJSONString();
+
+    }
+
+    /**
+     * @return a /v1/mods/{id}/files response listing the given number of files
+     */
+    @SuppressWarnings("unchecked")
+    public static String filesResponse(long modID, int files) {
+
+        Random random = new Random(modID);
+        JSONArray data = new JSONArray();
+        for (int i = 0; i < files; i++) {
+            data.add(fileObject(random, modID, modID * 10_000 + files - i));
+        }
+
+        JSONObject pagination = new JSONObject();
+        pagination.put("index", 0L);
+        pagination.put("pageSize", (long) files);
+        pagination.put("resultCount", (long) files);
+        pagination.put("totalCount", (long) files);
+
+        JSONObject response = new JSONObject();
+        response.put("data", data);
+        response.put("pagination", pagination);
+        return response.toJSONString();
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject fileObject(Random random, long modID, long fileID) {
+
+        String[] versions = { "1.20.1", "1.20", "1.19.4", "Forge", "NeoForge", "Server", "Client" };
+
+        JSONObject file = new JSONObject();
+        file.put("id", fileID);
+        file.put("gameId", 432L);
+        file.put("modId", modID);
+        file.put("isAvailable", true);
+        file.put("displayName", "Example Mod " + modID + " build " + fileID);
+        file.put("fileName", "examplemod-" + modID + "-" + fileID + ".jar");
+        file.put("releaseType", (long) (1 + random.nextInt(3)));
+        file.put("fileStatus", 4L);
+
+        JSONArray hashes = new JSONArray();
+        hashes.add(hash(sha1(fileID), 1));
+        hashes.add(hash(sha1(fileID).substring(0, 32), 2));
+        file.put("hashes", hashes);
+
+        file.put("fileDate", "2023-06-" + (10 + random.nextInt(18)) + "T12:34:56.789Z");
+        file.put("fileLength", 100_000L + random.nextInt(10_000_000));
+        file.put("downloadCount", (long) random.nextInt(1_000_000));
+        file.put("downloadUrl", "https://edge.forgecdn.net/files/" + fileID / 1000 + "/" + fileID % 1000
+                + "/examplemod-" + modID + "-" + fileID + ".jar");
+
+        JSONArray gameVersions = new JSONArray();
+        JSONArray sortable = new JSONArray();
+        for (String version : versions) {
+            gameVersions.add(version);
+            JSONObject entry = new JSONObject();
+            entry.put("gameVersionName", version);
+            entry.put("gameVersionPadded", "0000000001.0000000020.0000000001");
+            entry.put("gameVersion", version);
+            entry.put("gameVersionReleaseDate", "2023-06-12T00:00:00Z");
+            entry.put("gameVersionTypeId", 75125L);
+            sortable.add(entry);
+        }
+        file.put("gameVersions", gameVersions);
+        file.put("sortableGameVersions", sortable);
+
+        JSONArray dependencies = new JSONArray();
+        for (int i = random.nextInt(4); i > 0; i--) {
+            JSONObject dependency = new JSONObject();
+            dependency.put("modId", (long) random.nextInt(1_000_000));
+            dependency.put("relationType", (long) (2 + random.nextInt(2)));
+            dependencies.add(dependency);
+        }
+        file.put("dependencies", dependencies);
+
+        file.put("alternateFileId", 0L);
+        file.put("isServerPack", false);
+        file.put("fileFingerprint", (long) random.nextInt(Integer.MAX_VALUE));
+
+        JSONArray modules = new JSONArray();
+        for (String name : new String[] { "META-INF", "assets", "data", "com", "pack.mcmeta", "logo.png" }) {
+            JSONObject module = new JSONObject();
+            module.put("name", name);
+            module.put("fingerprint", (long) random.nextInt(Integer.MAX_VALUE));
+            modules.add(module);
+        }
+        file.put("modules", modules);
+
+        return file;
+
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject hash(String value, long algo) {
+
+        JSONObject hash = new JSONObject();
+        hash.put("value", value);
+        hash.put("algo", algo);
+        return hash;
+
+    }
+
+    private static String sha1(long seed) {
+        return String.format("%040x", seed * 0x9E3779B97F4A7C15L & Long.MAX_VALUE);
+    }
+
+}
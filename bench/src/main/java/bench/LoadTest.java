@@ -0,0 +1,254 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * End-to-end load test: runs mcmodmanager's -a, -c and -u against a
+ * MockCurseForge with thousands of mods, then releases new files of a few of
+ * the mods and runs -c again, which only needs to look those up. It reports,
+ * for each command, how long it took, the requests it made with their latency
+ * percentiles, the faults that were injected, and how many mods ended up in
+ * the expected state.
+ *
+ * Every command runs in its own JVM, exactly as a user would run it, in a
+ * fresh server directory with its own caches. The directory, with the output
+ * of every command, is kept so that failures can be looked into.
+ *
+ * Usage, after mvn -f bench/pom.xml package:
+ *
+ * java -cp bench/target/benchmarks.jar bench.LoadTest [--mods 2000] [--jobs 8]
+ * [--latency 20] [--jitter 20] [--error-rate 0] [--rate-limit-rate 0]
+ * [--drop-rate 0] [--jar-size 16] [--changed 0.02]
+ *
+ * Latency and jitter are in milliseconds, rates are fractions of all requests,
+ * the jar size is in KB and --changed is the fraction of mods released again
+ * before the second check. Any other arguments, such as --no-api-cache, are
+ * passed on to every mcmodmanager command.
+ */
+public class LoadTest {
+
+    private static final String VERSION = "1.20.1";
+
+    public static void main(String[] args) throws Exception {
+
+        MockCurseForge mock = new MockCurseForge();
+        int jobs = 8;
+        double changed = 0.02;
+        List<String> extraArgs = new ArrayList<>();
+
+        mock.latencyMillis = 20;
+        mock.jitterMillis = 20;
+        mock.mods = 2000;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--mods" -> mock.mods = Integer.parseInt(args[++i]);
+                case "--jobs" -> jobs = Integer.parseInt(args[++i]);
+                case "--latency" -> mock.latencyMillis = Integer.parseInt(args[++i]);
+                case "--jitter" -> mock.jitterMillis = Integer.parseInt(args[++i]);
+                case "--error-rate" -> mock.errorRate = Double.parseDouble(args[++i]);
+                case "--rate-limit-rate" -> mock.rateLimitRate = Double.parseDouble(args[++i]);
+                case "--drop-rate" -> mock.dropRate = Double.parseDouble(args[++i]);
+                case "--jar-size" -> mock.jarBytes = Integer.parseInt(args[++i]) * 1024;
+                case "--changed" -> changed = Double.parseDouble(args[++i]);
+                default -> extraArgs.add(args[i]);
+            }
+        }
+
+        Path dir = Files.createTempDirectory("mcmodmanager-load");
+        Files.createDirectories(dir.resolve("mods"));
+        Files.writeString(dir.resolve("mcmodmanager.json"),
+                "{\"apiKey\":\"load-test\",\"serverVersion\":\"" + VERSION + "\",\"mods\":[]}");
+
+        System.out.printf("Load test: %d mods, %d jobs, %d+%d ms latency, %.1f%% errors, %.1f%% 429s, "
+                + "%.1f%% dropped connections%n", mock.mods, jobs, mock.latencyMillis, mock.jitterMillis,
+                mock.errorRate * 100, mock.rateLimitRate * 100, mock.dropRate * 100);
+        System.out.println("Working directory: " + dir);
+
+        try {
+
+            StringBuilder ids = new StringBuilder();
+            for (int modID = 1; modID <= mock.mods; modID++) {
+                ids.append(ids.length() == 0 ? "" : ",").append(modID);
+            }
+
+            List<String> common = new ArrayList<>(List.of("--api-url", mock.url(), "-j", String.valueOf(jobs)));
+            common.addAll(extraArgs);
+
+            phase("add", dir, mock, args("-a", ids.toString(), common), () -> {
+                JSONArray mods = mods(dir);
+                return count(mods, mod -> true) + " of " + mock.mods + " mods added, " + jars(dir)
+                        + " jars in mods/";
+            });
+
+            mock.release();
+
+            phase("check", dir, mock, args("-c", VERSION, common), () -> {
+                JSONArray mods = mods(dir);
+                return count(mods, mod -> mod.get("update") != null) + " of " + mods.size()
+                        + " mods have an update saved";
+            });
+
+            phase("update", dir, mock, args("-u", null, common), () -> {
+                JSONArray mods = mods(dir);
+                return count(mods, mod -> (long) mod.get("fileID") == mock.fileID(
+                        Long.parseLong((String) mod.get("modID")), VERSION)) + " of " + mods.size()
+                        + " mods on the new release, " + jars(dir) + " jars in mods/";
+            });
+
+            // Release a new file of a few mods only. The second check should only
+            // look up those.
+            int released = 0;
+            int step = changed > 0 ? Math.max(1, (int) Math.round(1 / changed)) : Integer.MAX_VALUE;
+            for (long modID = step; modID <= mock.mods; modID += step) {
+                mock.release(modID);
+                released++;
+            }
+            int expected = released;
+
+            phase("recheck", dir, mock, args("-c", VERSION, common), () -> {
+                JSONArray mods = mods(dir);
+                return count(mods, mod -> mod.get("update") != null) + " of " + mods.size()
+                        + " mods have an update saved, " + expected + " were released";
+            });
+
+        } finally {
+            mock.stop();
+        }
+
+    }
+
+    private interface Check {
+        String run() throws Exception;
+    }
+
+    /**
+     * Runs one mcmodmanager command against the mock and prints its report.
+     */
+    private static void phase(String name, Path dir, MockCurseForge mock, List<String> args, Check check)
+            throws Exception {
+
+        mock.resetStats();
+
+        Path log = dir.resolve(name + ".log");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Duser.home=" + dir.resolve("home"));
+        command.add("-cp");
+        command.add(classPath());
+        command.add("ModManager");
+        command.addAll(args);
+
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .redirectOutput(log.toFile()).redirectInput(ProcessBuilder.Redirect.from(new File("/dev/null")))
+                .start();
+        int exitCode = process.waitFor();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        List<String> output = Files.readAllLines(log, StandardCharsets.UTF_8);
+        long exceptions = output.stream().filter(line -> line.matches("^[\\w.$]+(Exception|Error)(:.*)?$")).count();
+        long failures = output.stream().filter(line -> line.contains("could not") || line.contains("Could not")
+                || line.contains("failed")).count();
+
+        System.out.println();
+        System.out.printf("%s: %.2f s, %.0f mods/s, exit code %d%n", name, seconds, mock.mods / seconds, exitCode);
+
+        long requests = 0;
+        for (Map.Entry<String, long[]> entry : mock.latencies().entrySet()) {
+            long[] times = entry.getValue();
+            requests += times.length;
+            Arrays.sort(times);
+            System.out.printf("    %-28s %6d requests, p50 %4d ms, p95 %4d ms, p99 %4d ms, max %4d ms%n",
+                    entry.getKey(), times.length, percentile(times, 0.50), percentile(times, 0.95),
+                    percentile(times, 0.99), times[times.length - 1] / 1_000_000);
+        }
+        System.out.printf("    %d requests, %.0f requests/s%n", requests, requests / seconds);
+        System.out.println("    Outcomes: " + mock.outcomes());
+        System.out.println("    Failures reported: " + failures + ", exceptions: " + exceptions);
+        System.out.println("    Result: " + check.run());
+
+    }
+
+    /**
+     * @return this JVM's class path, which has mcmodmanager on it, with every
+     *         entry made absolute for the server directory
+     */
+    private static String classPath() {
+
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        return String.join(File.pathSeparator, entries);
+
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.ceil(sorted.length * percentile) - 1] / 1_000_000;
+    }
+
+    private static List<String> args(String command, String value, List<String> common) {
+
+        List<String> args = new ArrayList<>();
+        args.add(command);
+        if (value != null) {
+            args.add(value);
+        }
+        args.addAll(common);
+        return args;
+
+    }
+
+    private static JSONArray mods(Path dir) throws Exception {
+
+        try (Reader reader = Files.newBufferedReader(dir.resolve("mcmodmanager.json"), StandardCharsets.UTF_8)) {
+            return (JSONArray) ((JSONObject) new JSONParser().parse(reader)).get("mods");
+        }
+
+    }
+
+    private interface ModFilter {
+        boolean test(JSONObject mod);
+    }
+
+    private static int count(JSONArray mods, ModFilter filter) {
+
+        int count = 0;
+        for (Object mod : mods) {
+            if (filter.test((JSONObject) mod)) {
+                count++;
+            }
+        }
+        return count;
+
+    }
+
+    private static int jars(Path dir) throws IOException {
+
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.resolve("mods"), "*.jar")) {
+            for (Path jar : stream) {
+                count++;
+            }
+        }
+        return count;
+
+    }
+
+}
@@ -0,0 +1,612 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the CurseForge API that serves synthetic mods, files and
+ * jars, for load testing mcmodmanager without an API key.
+ *
+ * Mods 1 to mods exist. Every mod has one file per game version in versions,
+ * and every tenth mod requires the mod after it. Calling release() publishes
+ * a new file of every mod, so that a following -c finds an update for each;
+ * release(modID) does the same for one mod, and moves its dateModified.
+ * The jars are generated from their file ID, and the SHA-1 and length given
+ * in the file objects match them.
+ *
+ * Faults can be injected into any response: latency, 500 errors, 429
+ * responses with a Retry-After header, and connections that are dropped
+ * halfway through the body. Every request is counted per endpoint and per
+ * outcome, with the time it took to serve.
+ *
+ * Endpoints: GET /v1/mods/{id}, GET /v1/mods/{id}/files, POST /v1/mods,
+ * POST /v1/mods/files and GET /dl/{fileId}/{fileName} for the jars.
+ *
+ * It can also be run on its own, for scripts such as
+ * build/startup-benchmark.sh (see main for its options):
+ *
+ * java -cp bench/target/benchmarks.jar bench.MockCurseForge --port 8765
+ */
+public class MockCurseForge {
+
+    // The number of mods that exist, with IDs 1 to mods
+    public volatile int mods = 1000;
+
+    // The game versions every mod has files for
+    public volatile List<String> versions = List.of("1.20.1", "1.19.2");
+
+    // The size of every jar, in bytes
+    public volatile int jarBytes = 16 * 1024;
+
+    // Every response is delayed by latencyMillis, plus up to jitterMillis more
+    public volatile int latencyMillis = 0;
+    public volatile int jitterMillis = 0;
+
+    // The fraction of requests answered with a 500, a 429, or a connection that
+    // is dropped partway through the response
+    public volatile double errorRate = 0;
+    public volatile double rateLimitRate = 0;
+    public volatile double dropRate = 0;
+
+    // The Retry-After of 429 responses, in seconds
+    public volatile int retryAfterSeconds = 1;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // The current release of every mod's files, and the mods that have had
+    // releases of their own on top of it; see release()
+    private final AtomicInteger release = new AtomicInteger(1);
+    private final Map<Long, Integer> modReleases = new ConcurrentHashMap<>();
+
+    // SHA-1 of every jar served so far, so each is only hashed once
+    private final Map<Long, String> sha1s = new ConcurrentHashMap<>();
+
+    // Counts and service times per endpoint, and counts per outcome
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> outcomes = new ConcurrentHashMap<>();
+
+    /**
+     * Starts the server on a free port on 127.0.0.1.
+     */
+    public MockCurseForge() throws IOException {
+        this(0);
+    }
+
+    /**
+     * Starts the server on the given port on 127.0.0.1, or on a free one if
+     * port is 0.
+     */
+    public MockCurseForge(int port) throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+
+        // Injected latency is slept on the handler thread, so every request needs
+        // a thread of its own to be delayed concurrently like the real API
+        executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mock-curseforge");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+
+    }
+
+    /**
+     * Runs the stand-in until the process is stopped. It prints its base URL
+     * as the first line of output once it is listening.
+     *
+     * Options: --port N (default: a free port), --mods N, --versions V1,V2,...,
+     * --jar-size KB, --latency MS, --jitter MS, --error-rate F,
+     * --rate-limit-rate F and --drop-rate F, as for LoadTest.
+     */
+    public static void main(String[] args) throws Exception {
+
+        int port = 0;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            }
+        }
+
+        MockCurseForge mock = new MockCurseForge(port);
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--port" -> i++;
+                case "--mods" -> mock.mods = Integer.parseInt(args[++i]);
+                case "--versions" -> mock.versions = List.of(args[++i].split(","));
+                case "--jar-size" -> mock.jarBytes = Integer.parseInt(args[++i]) * 1024;
+                case "--latency" -> mock.latencyMillis = Integer.parseInt(args[++i]);
+                case "--jitter" -> mock.jitterMillis = Integer.parseInt(args[++i]);
+                case "--error-rate" -> mock.errorRate = Double.parseDouble(args[++i]);
+                case "--rate-limit-rate" -> mock.rateLimitRate = Double.parseDouble(args[++i]);
+                case "--drop-rate" -> mock.dropRate = Double.parseDouble(args[++i]);
+                default -> {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(2);
+                }
+            }
+        }
+
+        System.out.println(mock.url());
+        System.out.println("Serving " + mock.mods + " mods for " + String.join(", ", mock.versions)
+                + ". Stop with Ctrl-C.");
+        Thread.currentThread().join();
+
+    }
+
+    /**
+     * @return the base URL to pass to --api-url
+     */
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+
+        server.stop(0);
+        executor.shutdownNow();
+
+    }
+
+    /**
+     * Publishes a new file of every mod for every game version.
+     */
+    public void release() {
+        release.incrementAndGet();
+    }
+
+    /**
+     * Publishes a new file of one mod for every game version.
+     */
+    public void release(long modID) {
+        modReleases.merge(modID, 1, Integer::sum);
+    }
+
+    private int releaseOf(long modID) {
+        return release.get() + modReleases.getOrDefault(modID, 0);
+    }
+
+    /**
+     * @return the file ID of a mod's file for a game version in the current
+     *         release
+     */
+    public long fileID(long modID, String version) {
+        return fileID(modID, releaseOf(modID), versions.indexOf(version));
+    }
+
+    /**
+     * Clears the request counts and times.
+     */
+    public void resetStats() {
+
+        latencies.clear();
+        outcomes.clear();
+
+    }
+
+    /**
+     * @return the service times of every request since the last reset, in
+     *         nanoseconds, keyed by endpoint
+     */
+    public Map<String, long[]> latencies() {
+
+        Map<String, long[]> result = new TreeMap<>();
+        for (Map.Entry<String, List<Long>> entry : latencies.entrySet()) {
+            synchronized (entry.getValue()) {
+                result.put(entry.getKey(), entry.getValue().stream().mapToLong(Long::longValue).toArray());
+            }
+        }
+        return result;
+
+    }
+
+    /**
+     * @return how many requests ended in each outcome ("ok", "not modified",
+     *         "not found", "error", "rate limited" or "dropped") since the
+     *         last reset
+     */
+    public Map<String, Long> outcomes() {
+
+        Map<String, Long> result = new TreeMap<>();
+        outcomes.forEach((outcome, count) -> result.put(outcome, count.get()));
+        return result;
+
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        long start = System.nanoTime();
+        String endpoint = "other";
+        String outcome = "error";
+        boolean dropped = false;
+
+        try (exchange) {
+
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            endpoint = endpoint(exchange.getRequestMethod(), path);
+
+            delay();
+
+            double roll = ThreadLocalRandom.current().nextDouble();
+            if (roll < rateLimitRate) {
+                outcome = "rate limited";
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                sendJson(exchange, 429, error("Too many requests"));
+                return;
+            }
+            roll -= rateLimitRate;
+            if (roll < errorRate) {
+                outcome = "error";
+                sendJson(exchange, 500, error("Injected error"));
+                return;
+            }
+            roll -= errorRate;
+            boolean drop = roll < dropRate;
+
+            if (!endpoint.startsWith("GET /dl") && exchange.getRequestHeaders().getFirst("x-api-key") == null) {
+                outcome = "forbidden";
+                sendJson(exchange, 403, error("Missing x-api-key"));
+                return;
+            }
+
+            Response response = respond(exchange, endpoint, path);
+            if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+            }
+            outcome = response.code == 304 ? "not modified" : response.code == 404 ? "not found" : "ok";
+
+            if (drop) {
+                outcome = "dropped";
+                exchange.sendResponseHeaders(response.code, response.body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response.body, 0, response.body.length / 2);
+                out.flush();
+
+                // The server only closes the connection when a handler throws, so the
+                // client sees a truncated response rather than one that never ends
+                dropped = true;
+                throw new IOException("Connection dropped on purpose");
+            }
+
+            exchange.sendResponseHeaders(response.code, response.code == 304 ? -1 : response.body.length);
+            if (response.code != 304) {
+                exchange.getResponseBody().write(response.body);
+            }
+
+        } catch (IOException e) {
+            if (dropped) {
+                throw e;
+            }
+            // Otherwise the client went away; the outcome already says what it was sent
+        } catch (Exception e) {
+            // A bad request; the outcome already says what it was sent
+        } finally {
+            outcomes.computeIfAbsent(outcome, key -> new AtomicLong()).incrementAndGet();
+            List<Long> times = latencies.computeIfAbsent(endpoint, key -> new ArrayList<>());
+            synchronized (times) {
+                times.add(System.nanoTime() - start);
+            }
+        }
+
+    }
+
+    private record Response(int code, byte[] body) {
+    }
+
+    private Response respond(HttpExchange exchange, String endpoint, String[] path) throws Exception {
+
+        switch (endpoint) {
+
+            case "GET /v1/mods/{id}": {
+                long modID = Long.parseLong(path[3]);
+                if (!exists(modID)) {
+                    return json(404, error("Mod not found"));
+                }
+                return json(200, data(mod(modID)));
+            }
+
+            case "GET /v1/mods/{id}/files": {
+                long modID = Long.parseLong(path[3]);
+                if (!exists(modID)) {
+                    return json(404, error("Mod not found"));
+                }
+                return filesPage(exchange, modID);
+            }
+
+            case "POST /v1/mods": {
+                JSONArray data = new JSONArray();
+                for (Object id : (JSONArray) readBody(exchange).get("modIds")) {
+                    if (exists((long) id)) {
+                        data.add(mod((long) id));
+                    }
+                }
+                return json(200, data(data));
+            }
+
+            case "POST /v1/mods/files": {
+                JSONArray data = new JSONArray();
+                for (Object id : (JSONArray) readBody(exchange).get("fileIds")) {
+                    long fileID = (long) id;
+                    if (exists(fileID / 100_000)) {
+                        data.add(file(fileID));
+                    }
+                }
+                return json(200, data(data));
+            }
+
+            case "GET /dl/{fileId}/{fileName}": {
+                long fileID = Long.parseLong(path[2]);
+                if (!exists(fileID / 100_000)) {
+                    return json(404, error("File not found"));
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/java-archive");
+                return new Response(200, jar(fileID));
+            }
+
+            default:
+                return json(404, error("Unknown endpoint"));
+
+        }
+
+    }
+
+    /**
+     * Answers a file listing, newest first, with an ETag so that cached
+     * listings can be revalidated.
+     */
+    private Response filesPage(HttpExchange exchange, long modID) throws Exception {
+
+        Map<String, String> query = query(exchange.getRequestURI());
+        String version = query.get("gameVersion");
+        int index = Integer.parseInt(query.getOrDefault("index", "0"));
+        int pageSize = Integer.parseInt(query.getOrDefault("pageSize", "50"));
+
+        List<Long> fileIDs = new ArrayList<>();
+        for (int r = releaseOf(modID); r >= 1; r--) {
+            for (int v = 0; v < versions.size(); v++) {
+                if (version == null || version.equals(versions.get(v))) {
+                    fileIDs.add(fileID(modID, r, v));
+                }
+            }
+        }
+
+        JSONArray data = new JSONArray();
+        for (Long fileID : fileIDs.subList(Math.min(index, fileIDs.size()),
+                Math.min(index + pageSize, fileIDs.size()))) {
+            data.add(file(fileID));
+        }
+
+        JSONObject pagination = new JSONObject();
+        pagination.put("index", (long) index);
+        pagination.put("pageSize", (long) pageSize);
+        pagination.put("resultCount", (long) data.size());
+        pagination.put("totalCount", (long) fileIDs.size());
+
+        JSONObject response = data(data);
+        response.put("pagination", pagination);
+
+        byte[] body = response.toJSONString().getBytes(StandardCharsets.UTF_8);
+        String etag = "\"" + sha1(body) + "\"";
+        exchange.getResponseHeaders().set("ETag", etag);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            return new Response(304, new byte[0]);
+        }
+        return new Response(200, body);
+
+    }
+
+    private JSONObject mod(long modID) {
+
+        JSONArray indexes = new JSONArray();
+        for (String version : versions) {
+            long fileID = fileID(modID, version);
+            JSONObject index = new JSONObject();
+            index.put("gameVersion", version);
+            index.put("fileId", fileID);
+            index.put("filename", fileName(fileID));
+            index.put("releaseType", 1L);
+            indexes.add(index);
+        }
+
+        JSONObject mod = new JSONObject();
+        mod.put("id", modID);
+        mod.put("name", "Mock Mod " + modID);
+        mod.put("slug", "mock-mod-" + modID);
+        mod.put("dateModified", String.format("2024-01-01T00:%02d:%02dZ", releaseOf(modID) / 60 % 60,
+                releaseOf(modID) % 60));
+        mod.put("latestFilesIndexes", indexes);
+        return mod;
+
+    }
+
+    private JSONObject file(long fileID) {
+
+        long modID = fileID / 100_000;
+        String version = versions.get((int) (fileID % 10) % versions.size());
+
+        JSONArray gameVersions = new JSONArray();
+        gameVersions.add(version);
+        gameVersions.add("Forge");
+
+        JSONArray hashes = new JSONArray();
+        JSONObject sha1 = new JSONObject();
+        sha1.put("value", sha1s.computeIfAbsent(fileID, id -> sha1(jar(id))));
+        sha1.put("algo", 1L);
+        hashes.add(sha1);
+
+        JSONArray dependencies = new JSONArray();
+        if (modID % 10 == 0 && exists(modID + 1)) {
+            JSONObject dependency = new JSONObject();
+            dependency.put("modId", modID + 1);
+            dependency.put("relationType", 3L);
+            dependencies.add(dependency);
+        }
+
+        JSONObject file = new JSONObject();
+        file.put("id", fileID);
+        file.put("modId", modID);
+        file.put("displayName", fileName(fileID));
+        file.put("fileName", fileName(fileID));
+        file.put("downloadUrl", url() + "/dl/" + fileID + "/" + fileName(fileID));
+        file.put("fileLength", (long) jarBytes);
+        file.put("fileDate", "2024-01-01T00:00:00Z");
+        file.put("releaseType", 1L);
+        file.put("gameVersions", gameVersions);
+        file.put("hashes", hashes);
+        file.put("dependencies", dependencies);
+        return file;
+
+    }
+
+    /**
+     * @return a jar's contents: the zip local file header, then bytes derived
+     *         from the file ID
+     */
+    private byte[] jar(long fileID) {
+
+        byte[] jar = new byte[jarBytes];
+        new Random(fileID).nextBytes(jar);
+        jar[0] = 'P';
+        jar[1] = 'K';
+        jar[2] = 3;
+        jar[3] = 4;
+        return jar;
+
+    }
+
+    // File IDs encode the mod, the release and the version, so that any file
+    // object can be rebuilt from its ID alone
+    private static long fileID(long modID, int release, int version) {
+        return modID * 100_000 + release * 10L + version;
+    }
+
+    private static String fileName(long fileID) {
+        return "mockmod-" + fileID / 100_000 + "-" + fileID + ".jar";
+    }
+
+    private boolean exists(long modID) {
+        return modID >= 1 && modID <= mods;
+    }
+
+    private void delay() throws InterruptedException {
+
+        int millis = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+
+    }
+
+    private static String endpoint(String method, String[] path) {
+
+        if (path.length >= 2 && path[1].equals("dl")) {
+            return method + " /dl/{fileId}/{fileName}";
+        }
+        if (path.length == 3 && path[2].equals("mods")) {
+            return method + " /v1/mods";
+        }
+        if (path.length == 4 && path[2].equals("mods") && path[3].equals("files")) {
+            return method + " /v1/mods/files";
+        }
+        if (path.length == 4 && path[2].equals("mods")) {
+            return method + " /v1/mods/{id}";
+        }
+        if (path.length == 5 && path[2].equals("mods") && path[4].equals("files")) {
+            return method + " /v1/mods/{id}/files";
+        }
+        return method + " " + String.join("/", path);
+
+    }
+
+    private static Map<String, String> query(URI uri) {
+
+        Map<String, String> query = new HashMap<>();
+        if (uri.getQuery() != null) {
+            for (String pair : uri.getQuery().split("&")) {
+                String[] parts = pair.split("=", 2);
+                query.put(parts[0], parts.length > 1 ? parts[1] : "");
+            }
+        }
+        return query;
+
+    }
+
+    private static JSONObject readBody(HttpExchange exchange) throws Exception {
+
+        try (InputStream body = exchange.getRequestBody()) {
+            return (JSONObject) new JSONParser().parse(new InputStreamReader(body, StandardCharsets.UTF_8));
+        }
+
+    }
+
+    private static Response json(int code, JSONObject body) {
+        return new Response(code, body.toJSONString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, JSONObject body) throws IOException {
+
+        byte[] bytes = body.toJSONString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        exchange.getResponseBody().write(bytes);
+
+    }
+
+    private static JSONObject data(Object data) {
+
+        JSONObject response = new JSONObject();
+        response.put("data", data);
+        return response;
+
+    }
+
+    private static JSONObject error(String message) {
+
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        return error;
+
+    }
+
+    private static String sha1(byte[] bytes) {
+
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
@@ -0,0 +1,65 @@
+package bench;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.parser.JSONParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of /v1/mods/{id}/files responses with the given number of file
+ * objects: the full json-simple tree that curseForgeAPICall used to build,
+ * the projection of only the newest file that getLatestFiles uses, and the
+ * projection of every file.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseParseBenchmark {
+
+    @Param({ "10", "100", "1000", "5000" })
+    public int files;
+
+    private String response;
+
+    private Object newest;
+    private Object all;
+
+    @Setup
+    public void setup() throws Exception {
+
+        response = Fixtures.filesResponse(1000, files);
+        newest = App.fileFields("data.0");
+        all = App.fileFields("data.*");
+
+    }
+
+    @Benchmark
+    public Object fullTree() throws Exception {
+        return new JSONParser().parse(new StringReader(response));
+    }
+
+    @Benchmark
+    public Object projectNewestFile() throws Exception {
+        return App.parse(new StringReader(response), newest);
+    }
+
+    @Benchmark
+    public Object projectAllFiles() throws Exception {
+        return App.parse(new StringReader(response), all);
+    }
+
+}
@@ -0,0 +1,334 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests download.toFile against a local server that drops connections
+ * halfway through the body, refuses or misaligns ranges, replaces the file
+ * between requests, and answers 404.
+ */
+class DownloadTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    /**
+     * What the server does with one request.
+     */
+    private enum Step {
+        // Serve the file, or the requested range of it if If-Range still matches
+        SERVE,
+        // Send the headers of the whole file but only half of its body, then drop the connection
+        DROP,
+        // Like DROP, and then replace the file with a new one under a new ETag
+        DROP_AND_REPLACE,
+        // Answer 416 Range Not Satisfiable
+        REFUSE_RANGE,
+        // Answer a range request with a 206 that starts at the wrong offset
+        MISALIGN,
+        // Answer 404 Not Found
+        NOT_FOUND
+    }
+
+    /**
+     * A request as the server saw it.
+     */
+    private record Request(String range, String ifRange, int status) {
+    }
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private HttpClient client;
+    private String url;
+
+    private volatile byte[] body = randomBytes(256 * 1024, 1);
+    private volatile String etag = "\"v1\"";
+    private final Deque<Step> steps = new ArrayDeque<>();
+    private final List<Request> requests = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/file.jar", this::handle);
+        server.start();
+
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file.jar";
+        client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void downloadsWholeFile() throws IOException {
+
+        Path target = dir.resolve("file.jar");
+        String sha1 = download.toFile(client, url, target, TIMEOUT, sha1(body));
+
+        assertEquals(sha1(body), sha1);
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(1, requests.size());
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void resumesDroppedDownloadWithRange() throws IOException {
+
+        plan(Step.DROP, Step.SERVE);
+        Path target = dir.resolve("file.jar");
+        download.toFile(client, url, target, TIMEOUT, sha1(body));
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(2, requests.size());
+        assertResumed(requests.get(1), 206);
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void resumesDownloadLeftByEarlierCall() throws IOException {
+
+        plan(Step.DROP, Step.DROP, Step.DROP);
+        Path target = dir.resolve("file.jar");
+        assertThrows(IOException.class, () -> download.toFile(client, url, target, TIMEOUT, sha1(body)));
+        assertFalse(Files.exists(target));
+        assertTrue(Files.size(Path.of(target + ".part")) > 0);
+
+        requests.clear();
+        download.toFile(client, url, target, TIMEOUT, sha1(body));
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(1, requests.size());
+        assertResumed(requests.get(0), 206);
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void restartsWhenFileChangedSinceDrop() throws IOException {
+
+        plan(Step.DROP_AND_REPLACE, Step.SERVE);
+        Path target = dir.resolve("file.jar");
+        byte[] replacement = randomBytes(200 * 1024, 2);
+        download.toFile(client, url, target, TIMEOUT, sha1(replacement));
+
+        // If-Range no longer matches, so the server sends the whole new file
+        assertArrayEquals(replacement, Files.readAllBytes(target));
+        assertEquals(2, requests.size());
+        assertEquals("\"v1\"", requests.get(1).ifRange());
+        assertEquals(200, requests.get(1).status());
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void startsOverWhenRangeIsRefused() throws IOException {
+
+        plan(Step.DROP, Step.REFUSE_RANGE, Step.SERVE);
+        Path target = dir.resolve("file.jar");
+        download.toFile(client, url, target, TIMEOUT, sha1(body));
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(3, requests.size());
+        assertResumed(requests.get(1), 416);
+        assertNull(requests.get(2).range());
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void startsOverWhenRangeIsMisaligned() throws IOException {
+
+        plan(Step.DROP, Step.MISALIGN, Step.SERVE);
+        Path target = dir.resolve("file.jar");
+        download.toFile(client, url, target, TIMEOUT, sha1(body));
+
+        assertArrayEquals(body, Files.readAllBytes(target));
+        assertEquals(3, requests.size());
+        assertResumed(requests.get(1), 206);
+        assertNull(requests.get(2).range());
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void rejectsFileWithWrongHash() {
+
+        Path target = dir.resolve("file.jar");
+        IOException error = assertThrows(download.PermanentFailure.class,
+                () -> download.toFile(client, url, target, TIMEOUT, "0".repeat(40)));
+
+        // The whole file was sent, so downloading it again would not help
+        assertTrue(error.getMessage().contains("damaged"), error.getMessage());
+        assertEquals(1, requests.size());
+        assertFalse(Files.exists(target));
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void startsOverWhenResumedFileHasWrongHash() {
+
+        plan(Step.DROP, Step.SERVE, Step.SERVE);
+        Path target = dir.resolve("file.jar");
+        assertThrows(download.PermanentFailure.class,
+                () -> download.toFile(client, url, target, TIMEOUT, "0".repeat(40)));
+
+        // The resumed file may be damaged by the bytes of the dropped request,
+        // so it is downloaded once more from scratch before giving up
+        assertEquals(3, requests.size());
+        assertResumed(requests.get(1), 206);
+        assertNull(requests.get(2).range());
+        assertNoLeftovers(target);
+
+    }
+
+    @Test
+    void givesUpOnMissingFileRightAway() {
+
+        plan(Step.NOT_FOUND);
+        Path target = dir.resolve("file.jar");
+        IOException error = assertThrows(download.PermanentFailure.class,
+                () -> download.toFile(client, url, target, TIMEOUT, sha1(body)));
+
+        assertTrue(error.getMessage().contains("404"), error.getMessage());
+        assertEquals(1, requests.size());
+        assertFalse(Files.exists(target));
+        assertNoLeftovers(target);
+
+    }
+
+    private void plan(Step... plan) {
+        steps.addAll(List.of(plan));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        try (exchange) {
+
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            Step step;
+            synchronized (steps) {
+                step = steps.isEmpty() ? Step.SERVE : steps.poll();
+            }
+            byte[] file = body;
+
+            switch (step) {
+
+                case DROP:
+                case DROP_AND_REPLACE:
+                    requests.add(new Request(range, ifRange, 200));
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    exchange.sendResponseHeaders(200, file.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(file, 0, file.length / 2);
+                    out.flush();
+                    if (step == Step.DROP_AND_REPLACE) {
+                        body = randomBytes(200 * 1024, 2);
+                        etag = "\"v2\"";
+                    }
+                    // The server only closes the connection when a handler throws
+                    throw new IOException("Connection dropped on purpose");
+
+                case REFUSE_RANGE:
+                    requests.add(new Request(range, ifRange, 416));
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+
+                case NOT_FOUND:
+                    requests.add(new Request(range, ifRange, 404));
+                    exchange.sendResponseHeaders(404, -1);
+                    return;
+
+                case MISALIGN:
+                    requests.add(new Request(range, ifRange, 206));
+                    exchange.getResponseHeaders().set("Content-Range", "bytes 0-" + (file.length - 1) + "/"
+                            + file.length);
+                    exchange.sendResponseHeaders(206, file.length);
+                    exchange.getResponseBody().write(file);
+                    return;
+
+                default:
+                    exchange.getResponseHeaders().set("ETag", etag);
+                    if (range != null && etag.equals(ifRange)) {
+                        int offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+                        requests.add(new Request(range, ifRange, 206));
+                        exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-"
+                                + (file.length - 1) + "/" + file.length);
+                        exchange.sendResponseHeaders(206, file.length - offset);
+                        exchange.getResponseBody().write(file, offset, file.length - offset);
+                    } else {
+                        requests.add(new Request(range, ifRange, 200));
+                        exchange.sendResponseHeaders(200, file.length);
+                        exchange.getResponseBody().write(file);
+                    }
+                    return;
+
+            }
+
+        }
+
+    }
+
+    private static void assertResumed(Request request, int status) {
+
+        assertTrue(request.range() != null && request.range().startsWith("bytes=")
+                && !request.range().equals("bytes=0-"), "expected a range past the start, got " + request.range());
+        assertEquals("\"v1\"", request.ifRange());
+        assertEquals(status, request.status());
+
+    }
+
+    private static void assertNoLeftovers(Path target) {
+        assertFalse(Files.exists(Path.of(target + ".part")));
+        assertFalse(Files.exists(Path.of(target + ".part.json")));
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static String sha1(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests ModManager.updateMods against a local server on which one of two
+ * downloads always drops halfway through.
+ */
+class UpdateTest {
+
+    @TempDir
+    Path dir;
+
+    private HttpServer server;
+    private String baseUrl;
+    private Path jarCacheDir;
+
+    private final byte[] good = jarBytes(64 * 1024, 1);
+    private final byte[] broken = jarBytes(64 * 1024, 2);
+
+    @BeforeEach
+    void start() throws IOException {
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/dl/", this::handle);
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/dl/";
+
+        // Every file has to be downloaded, never taken from the shared cache
+        jarCacheDir = jarcache.dir;
+        jarcache.dir = null;
+
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        jarcache.dir = jarCacheDir;
+    }
+
+    @Test
+    void keepsUnfinishedDownloadsOutOfLiveFolder() throws Exception {
+
+        Path modsDir = dir.resolve("mods");
+        Files.createDirectories(modsDir);
+        Files.write(modsDir.resolve("a-1.jar"), jarBytes(1024, 3));
+        Files.write(modsDir.resolve("b-1.jar"), jarBytes(1024, 4));
+
+        config cfg = config.empty(dir.resolve(config.FILE_NAME).toString());
+        cfg.addMod(new config.Mod("1", "A", "1", "a-1.jar", 11, baseUrl + "a-1.jar", null, null));
+        cfg.addMod(new config.Mod("2", "B", "1", "b-1.jar", 21, baseUrl + "b-1.jar", null, null));
+        cfg.setUpdate("1", "a-2.jar", 12, baseUrl + "a-2.jar", "2", sha1(good), (long) good.length);
+        cfg.setUpdate("2", "b-2.jar", 22, baseUrl + "b-2.jar", "2", sha1(broken), (long) broken.length);
+        cfg.flush();
+
+        int updated = ModManager.updateMods(cfg, modsDir, 2, new PrintStream(new ByteArrayOutputStream()));
+
+        assertEquals(1, updated);
+        assertEquals(List.of("a-2.jar", "b-1.jar"), names(modsDir));
+        assertEquals("a-2.jar", cfg.mod("1").fileName());
+        assertEquals("b-1.jar", cfg.mod("2").fileName());
+
+        // The failed download is kept for the next update to resume
+        Path staged = staging.prepare(modsDir);
+        assertTrue(Files.size(staged.resolve("b-2.jar.part")) > 0);
+        assertTrue(Files.exists(staged.resolve("b-2.jar.part.json")));
+        assertFalse(Files.exists(dir.resolve("mods.unfinished")));
+
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+
+        try (exchange) {
+
+            boolean drop = exchange.getRequestURI().getPath().endsWith("b-2.jar");
+            byte[] file = drop ? broken : good;
+
+            exchange.getResponseHeaders().set("ETag", drop ? "\"b\"" : "\"a\"");
+            exchange.sendResponseHeaders(200, file.length);
+            OutputStream out = exchange.getResponseBody();
+            if (!drop) {
+                out.write(file);
+                return;
+            }
+
+            out.write(file, 0, file.length / 2);
+            out.flush();
+            // The server only closes the connection when a handler throws
+            throw new IOException("Connection dropped on purpose");
+
+        }
+
+    }
+
+    private static List<String> names(Path folder) throws IOException {
+        try (Stream<Path> entries = Files.list(folder)) {
+            return entries.map(entry -> entry.getFileName().toString()).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * @return random bytes that start with the zip local file header, so that
+     *         they pass ModManager.verifyJar
+     */
+    private static byte[] jarBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        bytes[0] = 'P';
+        bytes[1] = 'K';
+        bytes[2] = 3;
+        bytes[3] = 4;
+        return bytes;
+    }
+
+    private static String sha1(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(bytes));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
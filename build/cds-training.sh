@@ -0,0 +1,40 @@
+#!/bin/sh
+# Records an AppCDS archive for mcmodmanager.jar.
+#
+# The jar is run once with -XX:ArchiveClassesAtExit, and every class it loads
+# is written to the archive. Later runs with -XX:SharedArchiveFile map those
+# classes straight from the archive instead of loading and verifying them
+# again, which is most of the JVM's startup work for a short run.
+#
+# The training run is a -c against a scratch server directory with one mod,
+# so that config loading, the file check, the HttpClient and the API code
+# paths are all loaded. The API URL points at a closed local port, so the run
+# never touches the network, and --attempts 1 keeps the scheduler from
+# backing off and retrying, so it fails fast once the classes are loaded.
+#
+# usage: cds-training.sh JAR ARCHIVE
+
+set -e
+
+jar=$(cd "$(dirname "$1")" && pwd)/$(basename "$1")
+archive=$(cd "$(dirname "$2")" && pwd)/$(basename "$2")
+
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+
+mkdir "$work/mods" "$work/home"
+printf 'PK\003\004training' > "$work/mods/training.jar"
+cat > "$work/mcmodmanager.json" <<JSON
+{"apiKey":"training","serverVersion":"1.20.1","mods":[{"modID":"1","name":"Training","currentVersion":"1.20.1","fileName":"training.jar","fileID":1,"downloadLink":"http://127.0.0.1:9/training.jar","sha1":null,"fileLength":12}]}
+JSON
+
+rm -f "$archive"
+(cd "$work" && java -XX:ArchiveClassesAtExit="$archive" -Duser.home="$work/home" -jar "$jar" \
+    -c 1.20.1 --api-url http://127.0.0.1:9 --attempts 1 > "$work/training.log" 2>&1) || true
+
+if [ ! -f "$archive" ]; then
+    echo "The AppCDS archive could not be created:" >&2
+    cat "$work/training.log" >&2
+    exit 1
+fi
+echo "Recorded $(basename "$archive") from a training run"
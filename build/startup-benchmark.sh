@@ -0,0 +1,122 @@
+#!/bin/sh
+# Compares how long mcmodmanager takes to print its first line of output when
+# it is started from source, from the packaged jar, and from the jar with its
+# AppCDS archive.
+#
+# usage: startup-benchmark.sh [API_URL] [RUNS]
+#
+# Two commands are timed:
+#   -h                  pure startup: parse the arguments and print the usage
+#   -c VERSION          a real check of MODS mods (default 50) against a mock
+#                       CurseForge API at API_URL
+#
+# Without API_URL, the CurseForge stand-in from the bench module
+# (bench.MockCurseForge) is started on a free port for the duration of the
+# benchmark.
+#
+# The source launcher mode needs JDK 22 or newer, which can run a program made
+# of several source files; it is skipped on older JDKs. Build the jar and
+# archive first with: mvn -f build/pom.xml package, and the stand-in with:
+# mvn -f bench/pom.xml package
+
+set -e
+
+api=$1
+runs=${2:-10}
+mods=${MODS:-50}
+
+build=$(cd "$(dirname "$0")" && pwd)
+root=$(dirname "$build")
+jar="$build/target/mcmodmanager.jar"
+archive="$build/target/mcmodmanager.jsa"
+mock_jar="$root/bench/target/benchmarks.jar"
+
+work=$(mktemp -d)
+mock_pid=
+trap '[ -n "$mock_pid" ] && kill "$mock_pid"; rm -rf "$work"' EXIT
+
+if [ -z "$api" ]; then
+    if [ ! -f "$mock_jar" ]; then
+        echo "No API_URL given, and the stand-in is not built. Build it with: mvn -f bench/pom.xml package" >&2
+        exit 1
+    fi
+    java -cp "$mock_jar" bench.MockCurseForge --mods "$mods" --versions 1.19.2,1.19.3 > "$work/mock.log" 2>&1 &
+    mock_pid=$!
+
+    # The stand-in prints its URL once it is listening
+    tries=0
+    until api=$(head -n 1 "$work/mock.log" 2>/dev/null) && [ -n "$api" ]; do
+        tries=$((tries + 1))
+        if [ "$tries" -gt 100 ] || ! kill -0 "$mock_pid" 2>/dev/null; then
+            echo "The stand-in did not start:" >&2
+            cat "$work/mock.log" >&2
+            exit 1
+        fi
+        sleep 0.1
+    done
+fi
+
+# A server directory with MODS mods whose files are all present, so the file
+# check has nothing to repair
+mkdir "$work/mods" "$work/home"
+{
+    printf '{"apiKey":"benchmark","serverVersion":"1.19.2","mods":['
+    i=1
+    while [ "$i" -le "$mods" ]; do
+        [ "$i" -gt 1 ] && printf ','
+        printf '{"modID":"%d","name":"Mod %d","currentVersion":"1.19.2","fileName":"mod%d.jar","fileID":%d,"downloadLink":"%s/dl/%d/mod%d.jar","sha1":null,"fileLength":null}' \
+            "$i" "$i" "$i" "$((i * 10 + 6))" "$api" "$((i * 10 + 6))" "$i"
+        printf 'PK\003\004' > "$work/mods/mod$i.jar"
+        i=$((i + 1))
+    done
+    printf ']}'
+} > "$work/mcmodmanager.json"
+cp "$work/mcmodmanager.json" "$work/mcmodmanager.json.orig"
+
+# Prints the milliseconds from starting the command to its first line of output
+first_output() {
+    start=$(date +%s%N)
+    "$@" 2>&1 | {
+        IFS= read -r _
+        end=$(date +%s%N)
+        echo $(((end - start) / 1000000))
+        cat > /dev/null
+    }
+}
+
+# Prints the median of the numbers on standard input
+median() {
+    sort -n | awk '{ v[NR] = $1 } END { print (NR % 2) ? v[(NR + 1) / 2] : int((v[NR / 2] + v[NR / 2 + 1]) / 2) }'
+}
+
+measure() {
+    label=$1
+    shift
+    for command in "-h" "-c"; do
+        i=0
+        while [ "$i" -lt "$runs" ]; do
+            # Every -c run starts from the same config, and the API cache is
+            # disabled so each run really talks to the API
+            cp "$work/mcmodmanager.json.orig" "$work/mcmodmanager.json"
+            if [ "$command" = "-h" ]; then
+                (cd "$work" && first_output "$@" -h)
+            else
+                (cd "$work" && first_output "$@" -c 1.19.3 --api-url "$api" --no-api-cache --no-cache)
+            fi
+            i=$((i + 1))
+        done | median | xargs printf '%-28s %-4s %6s ms\n' "$label" "$command"
+    done
+}
+
+java_version=$(java -version 2>&1 | awk -F'"' '/version/ { split($2, v, "."); print v[1] }')
+
+echo "Median time to first output over $runs runs ($mods mods, API at $api)"
+if [ "$java_version" -ge 22 ]; then
+    measure "source launcher" java -Duser.home="$work/home" -cp "$root/json-simple-1.1.1.jar" "$root/mcmodmanager.java"
+else
+    echo "source launcher              skipped: needs JDK 22+, found $java_version"
+fi
+measure "jar" java -Duser.home="$work/home" -Xshare:auto -jar "$jar"
+if [ -f "$archive" ]; then
+    measure "jar + AppCDS" java -Duser.home="$work/home" -XX:SharedArchiveFile="$archive" -jar "$jar"
+fi
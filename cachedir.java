@@ -0,0 +1,131 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * A cache directory that is capped in size, shared by the jar cache and the
+ * API cache.
+ *
+ * The entries are the files in the directory that match a glob. An entry's
+ * modification time is when it was last stored or used, and the least
+ * recently used entries are evicted once the entries add up to more than the
+ * cache's size limit. Counts such as hits and misses are added up across runs
+ * in stats.json, next to the entries.
+ */
+public class cachedir {
+
+    private static final String STATS_FILE = "stats.json";
+
+    /**
+     * @return the entries of the cache directory that match glob, in no
+     *         particular order
+     */
+    public static List<Path> entries(Path dir, String glob) throws IOException {
+
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path entry : stream) {
+                if (!entry.getFileName().toString().equals(STATS_FILE)) {
+                    entries.add(entry);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // The cache directory has not been created yet
+        }
+        return entries;
+
+    }
+
+    /**
+     * @return the total size of the given entries in bytes
+     */
+    public static long size(List<Path> entries) throws IOException {
+
+        long total = 0;
+        for (Path entry : entries) {
+            total += Files.size(entry);
+        }
+        return total;
+
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache is no larger
+     * than maxBytes.
+     */
+    public static void evict(Path dir, String glob, long maxBytes) throws IOException {
+
+        List<Path> entries = entries(dir, glob);
+        long total = size(entries);
+
+        entries.sort(Comparator.comparing(cachedir::lastUsed));
+        for (Path entry : entries) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= Files.size(entry);
+            Files.deleteIfExists(entry);
+        }
+
+    }
+
+    /**
+     * Adds the counts from this run to stats.json, resetting them to zero, and
+     * then evicts the least recently used entries if the cache is over
+     * maxBytes. Evicting once per run rather than after every store keeps a run
+     * that stores n entries from listing the cache directory n times.
+     *
+     * @param counts the counts of this run, keyed by their name in stats.json
+     */
+    public static void saveStats(Path dir, String glob, long maxBytes, Map<String, AtomicLong> counts)
+            throws IOException {
+
+        Files.createDirectories(dir);
+        JSONObject stats = readStats(dir);
+        for (Map.Entry<String, AtomicLong> count : counts.entrySet()) {
+            stats.put(count.getKey(), (long) stats.getOrDefault(count.getKey(), 0L) + count.getValue().getAndSet(0));
+        }
+        storage.writeAtomically(dir.resolve(STATS_FILE), stats.toJSONString());
+
+        evict(dir, glob, maxBytes);
+
+    }
+
+    /**
+     * @return the counts in stats.json, or an empty object if there are none
+     *         yet
+     */
+    public static JSONObject readStats(Path dir) {
+
+        try (Reader reader = Files.newBufferedReader(dir.resolve(STATS_FILE), StandardCharsets.UTF_8)) {
+            return (JSONObject) new JSONParser().parse(reader);
+        } catch (Exception e) {
+            return new JSONObject();
+        }
+
+    }
+
+    private static FileTime lastUsed(Path entry) {
+
+        try {
+            return Files.getLastModifiedTime(entry);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+
+    }
+
+}
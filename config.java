@@ -0,0 +1,512 @@
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * In-memory view of mcmodmanager.json.
+ *
+ * The file is parsed once when the config is loaded. Every change is made to
+ * the in-memory copy and recorded as a change, and flush() hands the recorded
+ * changes to the storage backend at most once, no matter how many changes
+ * were made. See storage for how they are persisted.
+ */
+public class config {
+
+    public static final String FILE_NAME = "mcmodmanager.json";
+
+    private final String path;
+    private final JSONObject data;
+
+    // Mods keyed by mod ID, in the same order as they appear in the file
+    private final Map<String, Mod> mods = new LinkedHashMap<>();
+
+    // Changes made since the config was loaded or last flushed
+    private final List<JSONObject> changes = new ArrayList<>();
+
+    // Set when the whole snapshot has to be rewritten rather than just the changes
+    private boolean snapshotNeeded = false;
+
+    private storage.Backend backend;
+
+    private config(String path, JSONObject data, int journalLength) {
+
+        this.path = path;
+        this.data = data;
+
+        JSONArray modsArray = (JSONArray) data.get("mods");
+        if (modsArray != null) {
+            for (Object mod : modsArray) {
+                Mod entry = new Mod((JSONObject) mod);
+                mods.put(entry.modID(), entry);
+            }
+        }
+
+        backend = storage.forMode(storageMode(), path, journalLength);
+
+    }
+
+    /**
+     * Parses the config file at the given path and replays its journal, if it
+     * has one.
+     *
+     * @param path the location of mcmodmanager.json
+     * @return the parsed config
+     * @throws IOException    if the file can not be read
+     * @throws ParseException if the file is not valid JSON
+     */
+    public static config load(String path) throws IOException, ParseException {
+
+        storage.Stored stored = storage.read(path);
+
+        config cfg = new config(path, stored.snapshot(), stored.journal().size());
+        for (JSONObject change : stored.journal()) {
+            cfg.apply(change);
+        }
+        return cfg;
+
+    }
+
+    /**
+     * Creates a new, empty config with no API key, server version or mods. The
+     * config is dirty, so it is written to disk on the next flush.
+     *
+     * @param path the location the config should be saved to
+     */
+    public static config empty(String path) {
+
+        JSONObject obj = new JSONObject();
+        obj.put("apiKey", "");
+        obj.put("mods", new JSONArray());
+        obj.put("serverVersion", "");
+
+        config cfg = new config(path, obj, 0);
+        cfg.snapshotNeeded = true;
+        return cfg;
+
+    }
+
+    public String apiKey() {
+        return (String) data.get("apiKey");
+    }
+
+    public void setApiKey(String key) {
+        record(change("set", "key", "apiKey", "value", key));
+    }
+
+    public String serverVersion() {
+        return (String) data.get("serverVersion");
+    }
+
+    public void setServerVersion(String version) {
+        record(change("set", "key", "serverVersion", "value", version));
+    }
+
+    /**
+     * @return the storage backend in use, storage.JSON or storage.JOURNAL
+     */
+    public String storageMode() {
+        String mode = (String) data.get("storage");
+        return mode == null ? storage.JSON : mode;
+    }
+
+    /**
+     * Switches storage backend. The next flush writes a full snapshot, which
+     * also folds in any journal written by the old backend.
+     */
+    public void setStorageMode(String mode) {
+        data.put("storage", mode);
+        backend = storage.forMode(mode, path, 0);
+        snapshotNeeded = true;
+    }
+
+    /**
+     * @return the sequence number of the snapshot this config was loaded from
+     *         or last saved as (see storage)
+     */
+    public long sequence() {
+        return storage.sequenceOf(data);
+    }
+
+    /**
+     * Gives the config the sequence number of the next snapshot. Called by the
+     * storage backends right before they write one.
+     */
+    void nextSequence() {
+        data.put(storage.SEQUENCE, sequence() + 1);
+    }
+
+    /**
+     * @return every tracked mod, in config order. The collection is read only;
+     *         use addMod and removeMod to change it.
+     */
+    public Collection<Mod> mods() {
+        return Collections.unmodifiableCollection(mods.values());
+    }
+
+    /**
+     * @return the mod with the given ID, or null if it is not tracked
+     */
+    public Mod mod(String modID) {
+        return mods.get(modID);
+    }
+
+    public void addMod(Mod mod) {
+        record(change("add", "mod", mod.json));
+    }
+
+    /**
+     * @return the mod that was removed, or null if it was not tracked
+     */
+    public Mod removeMod(String modID) {
+
+        Mod removed = mods.get(modID);
+        if (removed != null) {
+            record(change("remove", "modID", modID));
+        }
+        return removed;
+
+    }
+
+    /**
+     * Records that a newer file is available for a mod. Nothing happens if the
+     * mod is not tracked.
+     */
+    public void setUpdate(String modID, String fileName, long fileID, String downloadLink, String version,
+            String sha1, Long fileLength) {
+
+        if (!mods.containsKey(modID)) {
+            return;
+        }
+
+        // Create a new JSON object for the update info
+        JSONObject updateInfo = new JSONObject();
+        updateInfo.put("newFileName", fileName);
+        updateInfo.put("newFileID", fileID);
+        updateInfo.put("newDownloadLink", downloadLink);
+        updateInfo.put("newVersion", version);
+        updateInfo.put("newSha1", sha1);
+        updateInfo.put("newFileLength", fileLength);
+
+        record(change("update", "modID", modID, "update", updateInfo));
+
+    }
+
+    /**
+     * Records that a mod was checked for updates on a game version, along with
+     * the mod's dateModified at the time. Nothing happens if the mod is not
+     * tracked.
+     */
+    public void setChecked(String modID, String version, String dateModified) {
+
+        if (!mods.containsKey(modID)) {
+            return;
+        }
+
+        JSONObject checked = new JSONObject();
+        checked.put("version", version);
+        checked.put("dateModified", dateModified);
+        checked.put("at", Instant.now().toString());
+
+        record(change("checked", "modID", modID, "checked", checked));
+
+    }
+
+    /**
+     * Makes a mod's pending update its current file: the update's file name,
+     * file ID, download link and version replace the current ones, and the
+     * update block is removed. Nothing happens if there is no pending update.
+     *
+     * This is recorded as an add of the whole new entry, which replaces the
+     * old entry in place, so that replaying it is idempotent.
+     */
+    public void promoteUpdate(String modID) {
+
+        Mod mod = mods.get(modID);
+        if (mod == null || mod.update() == null) {
+            return;
+        }
+
+        JSONObject update = mod.update();
+        JSONObject promoted = new JSONObject();
+        promoted.putAll(mod.json);
+        promoted.remove("update");
+        promoted.put("fileName", update.get("newFileName"));
+        promoted.put("fileID", update.get("newFileID"));
+        promoted.put("downloadLink", update.get("newDownloadLink"));
+        promoted.put("currentVersion", update.get("newVersion"));
+        promoted.put("sha1", update.get("newSha1"));
+        promoted.put("fileLength", update.get("newFileLength"));
+
+        record(change("add", "mod", promoted));
+
+    }
+
+    /**
+     * Replaces the whole registry with the contents of another file in the
+     * mcmodmanager.json format. The storage mode and snapshot sequence number
+     * of this config are kept.
+     *
+     * @param importPath the file to import
+     */
+    public void importFrom(String importPath) throws IOException, ParseException {
+
+        try (Reader reader = new FileReader(importPath)) {
+            replaceWith((JSONObject) new JSONParser().parse(reader));
+        }
+
+    }
+
+    /**
+     * Same as importFrom, for a registry that has already been parsed.
+     *
+     * @param imported the registry in the mcmodmanager.json format
+     */
+    public void replaceWith(JSONObject imported) {
+
+        String mode = storageMode();
+        long sequence = sequence();
+        data.clear();
+        data.putAll(imported);
+        data.put("storage", mode);
+        data.put(storage.SEQUENCE, sequence);
+
+        mods.clear();
+        JSONArray modsArray = (JSONArray) imported.get("mods");
+        if (modsArray != null) {
+            for (Object mod : modsArray) {
+                Mod entry = new Mod((JSONObject) mod);
+                mods.put(entry.modID(), entry);
+            }
+        }
+
+        changes.clear();
+        snapshotNeeded = true;
+
+    }
+
+    /**
+     * Writes the registry, with every journaled change applied, to a file in
+     * the mcmodmanager.json format.
+     *
+     * @param exportPath the file to write
+     */
+    public void exportTo(String exportPath) throws IOException {
+        storage.writeAtomically(Paths.get(exportPath), toJSONString());
+    }
+
+    public boolean isDirty() {
+        return snapshotNeeded || !changes.isEmpty();
+    }
+
+    /**
+     * Saves everything that has changed since the config was loaded or last
+     * flushed.
+     *
+     * @throws IOException if the file can not be written
+     */
+    public void flush() throws IOException {
+
+        metrics.time("config_flush", () -> {
+            if (snapshotNeeded) {
+                backend.compact(this);
+            } else if (!changes.isEmpty()) {
+                backend.save(this, changes);
+            }
+        });
+
+        changes.clear();
+        snapshotNeeded = false;
+
+    }
+
+    /**
+     * Applies a change to the in-memory registry and remembers it so it can be
+     * saved on the next flush.
+     */
+    private void record(JSONObject change) {
+        apply(change);
+        changes.add(change);
+    }
+
+    /**
+     * Applies one change to the in-memory registry. This is used both for new
+     * changes and to replay the journal when the config is loaded.
+     */
+    private void apply(JSONObject change) {
+
+        switch ((String) change.get("op")) {
+
+            case "set":
+                data.put(change.get("key"), change.get("value"));
+                break;
+
+            case "add":
+                Mod mod = new Mod((JSONObject) change.get("mod"));
+                mods.put(mod.modID(), mod);
+                break;
+
+            case "remove":
+                mods.remove(change.get("modID"));
+                break;
+
+            case "update":
+                Mod updated = mods.get(change.get("modID"));
+                if (updated != null) {
+                    updated.json.put("update", change.get("update"));
+                }
+                break;
+
+            case "checked":
+                Mod checked = mods.get(change.get("modID"));
+                if (checked != null) {
+                    checked.json.put("lastChecked", change.get("checked"));
+                }
+                break;
+
+            default:
+                break;
+
+        }
+
+    }
+
+    /**
+     * Builds a change record for the given operation from key/value pairs.
+     */
+    private static JSONObject change(String op, Object... fields) {
+
+        JSONObject change = new JSONObject();
+        change.put("op", op);
+        for (int i = 0; i < fields.length; i += 2) {
+            change.put(fields[i], fields[i + 1]);
+        }
+        return change;
+
+    }
+
+    /**
+     * @return the config in the mcmodmanager.json format
+     */
+    public String toJSONString() {
+
+        JSONArray modsArray = new JSONArray();
+        for (Mod mod : mods.values()) {
+            modsArray.add(mod.json);
+        }
+        data.put("mods", modsArray);
+
+        return data.toJSONString();
+
+    }
+
+    /**
+     * Typed access to one entry of the "mods" array. The underlying JSON object
+     * is kept so that fields this class does not know about are preserved.
+     */
+    public static class Mod {
+
+        private final JSONObject json;
+
+        Mod(JSONObject json) {
+            this.json = json;
+        }
+
+        public Mod(String modID, String name, String currentVersion, String fileName, long fileID,
+                String downloadLink, String sha1, Long fileLength) {
+
+            json = new JSONObject();
+            json.put("modID", modID);
+            json.put("name", name);
+            json.put("currentVersion", currentVersion);
+            json.put("fileName", fileName);
+            json.put("fileID", fileID);
+            json.put("downloadLink", downloadLink);
+            json.put("sha1", sha1);
+            json.put("fileLength", fileLength);
+
+        }
+
+        public String modID() {
+            return (String) json.get("modID");
+        }
+
+        public String name() {
+            return (String) json.get("name");
+        }
+
+        public String currentVersion() {
+            return (String) json.get("currentVersion");
+        }
+
+        public String fileName() {
+            return (String) json.get("fileName");
+        }
+
+        public long fileID() {
+            return (long) json.get("fileID");
+        }
+
+        public String downloadLink() {
+            return (String) json.get("downloadLink");
+        }
+
+        /**
+         * @return the hex SHA-1 CurseForge publishes for the file, or null for
+         *         mods added before hashes were recorded
+         */
+        public String sha1() {
+            return (String) json.get("sha1");
+        }
+
+        /**
+         * @return the size of the file in bytes, or null if it is not known
+         */
+        public Long fileLength() {
+            return (Long) json.get("fileLength");
+        }
+
+        /**
+         * @return the pending update info written by setUpdate, or null if there
+         *         is none
+         */
+        public JSONObject update() {
+            return (JSONObject) json.get("update");
+        }
+
+        /**
+         * @return the last check written by setChecked: the game version, the
+         *         mod's dateModified and the time of the check, or null if the
+         *         mod has not been checked yet
+         */
+        public JSONObject lastChecked() {
+            return (JSONObject) json.get("lastChecked");
+        }
+
+        /**
+         * @return true if the mod was last checked on version, and CurseForge
+         *         has not modified it since
+         */
+        public boolean unchangedSince(String version, String dateModified) {
+
+            JSONObject checked = lastChecked();
+            return checked != null && dateModified != null && version.equals(checked.get("version"))
+                    && dateModified.equals(checked.get("dateModified"));
+
+        }
+
+    }
+
+}
@@ -0,0 +1,480 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.HexFormat;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Long-running daemon mode (--daemon).
+ *
+ * Instead of starting a new JVM for every check, the daemon keeps the config,
+ * the HTTP client and its connections warm and checks for updates on a
+ * schedule. Checks are spread out by a random jitter so that many servers
+ * started at the same time do not all poll CurseForge at once. With
+ * --auto-update, pending updates are installed, but only during the
+ * maintenance window given by --window.
+ *
+ * All of the work is done on a single worker thread, so ModManager's static
+ * state is never used by two checks at once. If mcmodmanager.json (or its
+ * journal) is changed by another process, it is reloaded before the next
+ * check.
+ *
+ * A small HTTP endpoint on 127.0.0.1 reports the daemon's status and lets
+ * checks and updates be triggered on demand:
+ *
+ * GET /status returns the state of the daemon as JSON
+ * POST /check runs a check now
+ * POST /update installs pending updates now, whatever the time
+ * GET /metrics returns the timings and counters of every check so far in the
+ * Prometheus text format, or as JSON with ?format=json (see metrics)
+ *
+ * Being on 127.0.0.1 is not enough to keep other local users, or web pages
+ * open in a browser, from installing updates outside the window. POST
+ * requests must carry the token from mcmodmanager.token in the server
+ * directory, which only the daemon's user can read, as an "Authorization:
+ * Bearer TOKEN" header. A browser can not send that header to another origin
+ * without asking first, and requests that come from a web page at all, which
+ * carry an Origin header, are refused.
+ */
+public class daemon {
+
+    // How often to check for updates, before jitter
+    public static Duration interval = Duration.ofMinutes(60);
+
+    // Every delay is moved by up to this fraction of the interval, either way
+    public static final double JITTER = 0.1;
+
+    // The time of day updates may be installed in, or null for any time
+    public static LocalTime windowStart = null;
+    public static LocalTime windowEnd = null;
+
+    // Whether to install pending updates during the maintenance window
+    public static boolean autoUpdate = false;
+
+    // The port of the control endpoint, on 127.0.0.1
+    public static int controlPort = 8754;
+
+    // The file in the server directory that holds the control endpoint's token
+    public static final String TOKEN_FILE = "mcmodmanager.token";
+
+    private static final ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1,
+            runnable -> new Thread(runnable, "mcmodmanager-daemon"));
+    static {
+        // On shutdown, let a running check finish but drop the scheduled ones
+        worker.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    private static String gameVersion;
+    private static ScheduledFuture<?> nextRun;
+
+    // Status, written by the worker thread and read by the control endpoint
+    private static volatile String state = "starting";
+    private static volatile Instant startedAt = Instant.now();
+    private static volatile Instant lastCheck = null;
+    private static volatile Instant lastUpdate = null;
+    private static volatile Instant nextCheck = null;
+    private static volatile long checks = 0;
+    private static volatile String lastError = null;
+
+    // The mod count and pending updates, as of the end of the last check. Built
+    // on the worker thread, which is the only one that touches the config.
+    private static volatile JSONObject registry = new JSONObject();
+
+    // The token POST requests must carry
+    private static String token;
+
+    // The modification times of the config and its journal after the last flush
+    private static long configStamp;
+
+    /**
+     * Starts the daemon. This does not return until the process is shut down.
+     *
+     * @param version the minecraft version to check for updates on, or null to
+     *                use the server version from the config
+     */
+    public static void run(String version) throws IOException, InterruptedException {
+
+        gameVersion = version;
+        configStamp = configStamp();
+        token = loadToken(ModManager.serverDir.resolve(TOKEN_FILE));
+        publishRegistry();
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), controlPort), 0);
+        server.createContext("/status", daemon::status);
+        server.createContext("/check", exchange -> trigger(exchange, false));
+        server.createContext("/update", exchange -> trigger(exchange, true));
+        server.createContext("/metrics", daemon::metrics);
+        server.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+
+            log("Shutting down");
+            server.stop(0);
+            worker.shutdown();
+
+            // A running check saves the config itself when it finishes
+            try {
+                worker.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+        }));
+
+        log("Started. Checking every " + interval.toMinutes() + " minutes"
+                + (autoUpdate ? ", updating " + (windowStart == null ? "at any time" : "between " + windowStart
+                        + " and " + windowEnd) : "")
+                + ". Control endpoint on http://127.0.0.1:" + controlPort + ", token in "
+                + ModManager.serverDir.resolve(TOKEN_FILE));
+
+        schedule(Duration.ZERO);
+        worker.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+
+    }
+
+    /**
+     * Runs one check, installs updates if that is allowed right now, and
+     * schedules the next run.
+     */
+    private static void cycle(boolean forceUpdate) {
+
+        String problem = null;
+
+        try {
+
+            reloadIfChanged();
+
+            String version = gameVersion != null ? gameVersion : ModManager.cfg.serverVersion();
+            state = "checking";
+            log("Checking " + ModManager.cfg.mods().size() + " mods for updates on " + version);
+            ModManager.checkUpdates(version, ModManager.maxConcurrency);
+            lastCheck = Instant.now();
+            checks++;
+
+            if (pendingUpdates().size() > 0 && (forceUpdate || (autoUpdate && inWindow(LocalTime.now())))) {
+                state = "updating";
+                log("Installing " + pendingUpdates().size() + " updates");
+                ModManager.updateMods(ModManager.cfg, ModManager.modsDir(), ModManager.maxConcurrency, System.out);
+                lastUpdate = Instant.now();
+
+                // Mods whose download failed keep their update for the next run
+                if (pendingUpdates().size() > 0) {
+                    problem = pendingUpdates().size() + " updates could not be installed";
+                }
+            }
+
+            ModManager.cfg.flush();
+            configStamp = configStamp();
+            jarcache.saveStats();
+            apicache.saveStats();
+            metrics.gauge("mods_tracked", ModManager.cfg.mods().size());
+            metrics.save();
+            lastError = problem;
+
+        } catch (Exception e) {
+            lastError = e.toString();
+            e.printStackTrace();
+        } finally {
+            publishRegistry();
+            state = "idle";
+            schedule(nextDelay(LocalDateTime.now()));
+        }
+
+    }
+
+    /**
+     * Replaces the scheduled run with one after the given delay.
+     */
+    private static synchronized void schedule(Duration delay) {
+
+        if (worker.isShutdown()) {
+            return;
+        }
+        if (nextRun != null) {
+            nextRun.cancel(false);
+        }
+        nextCheck = Instant.now().plus(delay);
+        nextRun = worker.schedule(() -> cycle(false), delay.toMillis(), TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * @return the jittered poll interval, or less if the maintenance window
+     *         opens sooner and there are updates waiting to be installed
+     */
+    static Duration nextDelay(LocalDateTime now) {
+
+        long jitter = (long) (interval.toMillis() * JITTER * (ThreadLocalRandom.current().nextDouble() * 2 - 1));
+        Duration delay = interval.plusMillis(jitter);
+
+        if (autoUpdate && windowStart != null && !pendingUpdates().isEmpty()) {
+            LocalDateTime opens = now.toLocalDate().atTime(windowStart);
+            if (!opens.isAfter(now)) {
+                opens = opens.plusDays(1);
+            }
+            Duration untilWindow = Duration.between(now, opens);
+            if (untilWindow.compareTo(delay) < 0) {
+                delay = untilWindow;
+            }
+        }
+
+        return delay;
+
+    }
+
+    /**
+     * @return true if updates may be installed at the given time of day. The
+     *         window may wrap around midnight.
+     */
+    static boolean inWindow(LocalTime time) {
+
+        if (windowStart == null) {
+            return true;
+        }
+        if (windowStart.isBefore(windowEnd)) {
+            return !time.isBefore(windowStart) && time.isBefore(windowEnd);
+        }
+        return !time.isBefore(windowStart) || time.isBefore(windowEnd);
+
+    }
+
+    /**
+     * Parses a maintenance window given as "HH:MM-HH:MM".
+     */
+    public static void setWindow(String window) {
+
+        String[] times = window.split("-");
+        if (times.length != 2) {
+            throw new IllegalArgumentException("The window must look like 02:00-05:00");
+        }
+        windowStart = LocalTime.parse(times[0].trim());
+        windowEnd = LocalTime.parse(times[1].trim());
+
+    }
+
+    /**
+     * Publishes what the status endpoint reports about the mod list. Only
+     * called on the worker thread, or before it starts.
+     */
+    private static void publishRegistry() {
+
+        JSONObject snapshot = new JSONObject();
+        snapshot.put("mods", ModManager.cfg.mods().size());
+        snapshot.put("pendingUpdates", pendingUpdates());
+        registry = snapshot;
+
+    }
+
+    private static JSONArray pendingUpdates() {
+
+        JSONArray pending = new JSONArray();
+        for (config.Mod mod : ModManager.cfg.mods()) {
+            if (mod.update() != null) {
+                pending.add(mod.name());
+            }
+        }
+        return pending;
+
+    }
+
+    /**
+     * Reloads the config if another process has written it since the daemon
+     * last did.
+     */
+    private static void reloadIfChanged() throws Exception {
+
+        long stamp = configStamp();
+        if (stamp != configStamp) {
+            log("The config has changed on disk, reloading it");
+            ModManager.cfg = config.load(ModManager.configPath());
+            configStamp = stamp;
+        }
+
+    }
+
+    private static long configStamp() {
+
+        long stamp = 0;
+        String configPath = ModManager.configPath();
+        for (Path path : new Path[] { Paths.get(configPath), storage.journalPath(configPath) }) {
+            try {
+                stamp = stamp * 31 + Files.getLastModifiedTime(path).toMillis() + Files.size(path);
+            } catch (IOException e) {
+                // A missing journal is fine
+            }
+        }
+        return stamp;
+
+    }
+
+    /**
+     * Reads the control endpoint's token from file, or creates the file with a
+     * new random token that only the current user can read.
+     */
+    static String loadToken(Path file) throws IOException {
+
+        if (Files.exists(file)) {
+            String existing = Files.readString(file, StandardCharsets.UTF_8).trim();
+            if (!existing.isEmpty()) {
+                return existing;
+            }
+        }
+
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        String created = HexFormat.of().formatHex(bytes);
+
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system; the file gets the default permissions
+            Files.createFile(file);
+        }
+        Files.writeString(file, created + "\n", StandardCharsets.UTF_8);
+        return created;
+
+    }
+
+    /**
+     * Refuses requests made by web pages, and, if needsToken is set, requests
+     * without the token.
+     *
+     * @return true if the request was refused and answered
+     */
+    private static boolean refuse(HttpExchange exchange, boolean needsToken) throws IOException {
+
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            respond(exchange, 403, error("Requests from web pages are not allowed"));
+            return true;
+        }
+
+        if (needsToken) {
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.UTF_8);
+            if (authorization == null
+                    || !MessageDigest.isEqual(expected, authorization.getBytes(StandardCharsets.UTF_8))) {
+                respond(exchange, 401, error("Send the token from " + TOKEN_FILE + " as Authorization: Bearer TOKEN"));
+                return true;
+            }
+        }
+
+        return false;
+
+    }
+
+    private static void status(HttpExchange exchange) throws IOException {
+
+        if (refuse(exchange, false)) {
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            respond(exchange, 405, error("Use GET"));
+            return;
+        }
+
+        JSONObject status = new JSONObject();
+        status.put("state", state);
+        status.put("startedAt", startedAt.toString());
+        status.put("lastCheck", lastCheck == null ? null : lastCheck.toString());
+        status.put("lastUpdate", lastUpdate == null ? null : lastUpdate.toString());
+        status.put("nextCheck", nextCheck == null ? null : nextCheck.toString());
+        status.put("checks", checks);
+        status.put("lastError", lastError);
+        status.putAll(registry);
+        status.put("autoUpdate", autoUpdate);
+        status.put("window", windowStart == null ? null : windowStart + "-" + windowEnd);
+        status.put("inWindow", inWindow(LocalTime.now()));
+
+        respond(exchange, 200, status);
+
+    }
+
+    private static void metrics(HttpExchange exchange) throws IOException {
+
+        if (refuse(exchange, false)) {
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("GET")) {
+            respond(exchange, 405, error("Use GET"));
+            return;
+        }
+
+        String query = exchange.getRequestURI().getQuery();
+        if (query != null && query.contains("format=json")) {
+            respond(exchange, 200, metrics.toJSON());
+        } else {
+            respond(exchange, 200, "text/plain; version=0.0.4", metrics.toPrometheus());
+        }
+
+    }
+
+    private static void trigger(HttpExchange exchange, boolean update) throws IOException {
+
+        if (refuse(exchange, true)) {
+            return;
+        }
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, error("Use POST"));
+            return;
+        }
+
+        // Run as soon as the worker is free. When it finishes, the next scheduled
+        // check is moved to a full interval later.
+        worker.execute(() -> cycle(update));
+
+        JSONObject accepted = new JSONObject();
+        accepted.put("accepted", update ? "update" : "check");
+        respond(exchange, 202, accepted);
+
+    }
+
+    private static JSONObject error(String message) {
+
+        JSONObject error = new JSONObject();
+        error.put("error", message);
+        return error;
+
+    }
+
+    private static void respond(HttpExchange exchange, int code, JSONObject body) throws IOException {
+        respond(exchange, code, "application/json", body.toJSONString());
+    }
+
+    private static void respond(HttpExchange exchange, int code, String contentType, String body) throws IOException {
+
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+
+    }
+
+    private static void log(String message) {
+        System.out.println("[" + LocalDateTime.now().withNano(0) + "] " + message);
+    }
+
+}
@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+
+/**
+ * Resumable file downloads.
+ *
+ * A download is streamed into "<file>.part". Next to it, "<file>.part.json"
+ * records the URL, the expected size and the validator (ETag or
+ * Last-Modified) the server sent. If the connection drops, the download is
+ * resumed from the end of the .part file with a Range request, both within
+ * the same call (up to MAX_ATTEMPTS times) and on a later run. If-Range makes
+ * sure the server only sends the rest of the file when it is still the same
+ * file; otherwise it sends the whole file and the download restarts cleanly.
+ *
+ * The SHA-1 of the file is computed while it is being written, so checking
+ * it against the hash CurseForge publishes costs no second read of the file.
+ * Only a complete file whose hash matches is renamed to its final name.
+ *
+ * Failures that another attempt can not fix, such as a 404 or a whole file
+ * whose hash is wrong, are thrown right away as a PermanentFailure instead
+ * of being retried.
+ */
+public class download {
+
+    // How many times one call will try to download a file before giving up
+    public static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * What is known about a partially downloaded file.
+     */
+    private record Partial(String url, long length, String validator) {
+    }
+
+    /**
+     * The result of one attempt.
+     *
+     * @param digest    a SHA-1 digest that has been fed the whole .part file
+     * @param fromStart true if the whole file came in this attempt's response,
+     *                  rather than being appended to an earlier partial one
+     */
+    private record Attempt(MessageDigest digest, boolean fromStart) {
+    }
+
+    /**
+     * A download that failed in a way retrying can not fix: the server
+     * refused the request with a 4xx other than 408 or 429, or sent the whole
+     * file and its hash was wrong.
+     */
+    public static class PermanentFailure extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public PermanentFailure(String message) {
+            super(message);
+        }
+
+    }
+
+    /**
+     * Downloads url to target, resuming a previous partial download if there
+     * is one for the same URL.
+     *
+     * @param client       the client to send the requests on
+     * @param url          the URL of the file to download
+     * @param target       where to save the file
+     * @param timeout      how long to wait for the server to start responding
+     * @param expectedSha1 the hex SHA-1 the file must have, or null to accept
+     *                     any content
+     * @return the hex SHA-1 of the downloaded file
+     * @throws IOException if the file could not be downloaded, or did not match
+     *                     expectedSha1, in MAX_ATTEMPTS attempts, or a
+     *                     PermanentFailure as soon as retrying can not help
+     */
+    public static String toFile(HttpClient client, String url, Path target, Duration timeout, String expectedSha1)
+            throws IOException {
+
+        Path part = Paths.get(target + ".part");
+        Path meta = Paths.get(target + ".part.json");
+
+        IOException lastError = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+
+            try {
+
+                Attempt result = attempt(client, url, part, meta, timeout);
+                String sha1 = HexFormat.of().formatHex(result.digest().digest());
+
+                // A damaged file is thrown away. If it was resumed, the bytes
+                // from an earlier attempt may be what is wrong, so it is
+                // downloaded again from scratch; if not, the server is serving
+                // a file with the wrong hash and trying again will not help.
+                if (expectedSha1 != null && !expectedSha1.equalsIgnoreCase(sha1)) {
+                    Files.deleteIfExists(part);
+                    Files.deleteIfExists(meta);
+                    String message = "Download of " + url + " is damaged: expected SHA-1 " + expectedSha1
+                            + " but got " + sha1;
+                    throw result.fromStart() ? new PermanentFailure(message) : new IOException(message);
+                }
+
+                // The .part file is complete, so it can take its final name
+                Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                Files.deleteIfExists(meta);
+                return sha1;
+
+            } catch (PermanentFailure e) {
+                throw e;
+            } catch (IOException e) {
+                lastError = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Download of " + url + " was interrupted", e);
+            }
+
+            // Back off before trying again, like API requests do (see scheduler)
+            if (attempt < MAX_ATTEMPTS) {
+                try {
+                    Thread.sleep(scheduler.backoff(attempt).toMillis());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Download of " + url + " was interrupted", e);
+                }
+            }
+
+        }
+
+        throw lastError;
+
+    }
+
+    /**
+     * Makes one request for the file. If a usable partial download exists,
+     * only the missing bytes are requested and appended; otherwise the .part
+     * file is started from scratch. Returns normally only once the .part file
+     * holds the whole file.
+     */
+    private static Attempt attempt(HttpClient client, String url, Path part, Path meta, Duration timeout)
+            throws IOException, InterruptedException {
+
+        // CurseForge download links can contain spaces, which are not valid in a URI
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(url.replace(" ", "%20")))
+                .timeout(timeout)
+                .GET();
+
+        Partial partial = readPartial(meta);
+        long offset = Files.exists(part) ? Files.size(part) : 0;
+        boolean resuming = partial != null && partial.url().equals(url) && partial.validator() != null
+                && offset > 0 && (partial.length() < 0 || offset < partial.length());
+
+        if (resuming) {
+            request.header("Range", "bytes=" + offset + "-");
+            request.header("If-Range", partial.validator());
+        } else if (partial != null && partial.url().equals(url) && offset == partial.length()) {
+            // A previous run received everything but did not get to rename the file
+            return new Attempt(digestOf(part, offset), false);
+        }
+
+        long resumeOffset = offset;
+        boolean[] misaligned = { false };
+        MessageDigest[] digest = { newSha1() };
+
+        HttpResponse<Path> response = client.send(request.build(), info -> {
+
+            if (info.statusCode() == 206) {
+
+                // The server is sending the rest of the same file, which must start
+                // exactly where the .part file ends
+                String range = info.headers().firstValue("Content-Range").orElse("");
+                if (!range.startsWith("bytes " + resumeOffset + "-")) {
+                    misaligned[0] = true;
+                    return HttpResponse.BodySubscribers.replacing(part);
+                }
+
+                // The bytes already on disk have to be hashed before the new ones
+                try {
+                    digest[0] = digestOf(part, resumeOffset);
+                } catch (IOException e) {
+                    misaligned[0] = true;
+                    return HttpResponse.BodySubscribers.replacing(part);
+                }
+                return new HashingFileSubscriber(part, digest[0], StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+
+            } else if (info.statusCode() == 200) {
+
+                // A full file, either because this is a new download or because
+                // the server could not (or would not) resume the old one
+                writePartial(meta, new Partial(url,
+                        info.headers().firstValueAsLong("Content-Length").orElse(-1),
+                        validator(info.headers().firstValue("ETag"), info.headers().firstValue("Last-Modified"))));
+                return new HashingFileSubscriber(part, digest[0], StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            }
+
+            return HttpResponse.BodySubscribers.replacing(part);
+
+        });
+
+        if (response.statusCode() == 416 || misaligned[0]) {
+
+            // The range could not be satisfied, so throw away the partial file.
+            // The next attempt starts over.
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(meta);
+            throw new IOException("Could not resume the download of " + url);
+
+        } else if (response.statusCode() >= 400 && response.statusCode() < 500 && response.statusCode() != 408
+                && response.statusCode() != 429) {
+
+            // The link is gone or not allowed, which asking again will not change
+            throw new PermanentFailure("Response code " + response.statusCode() + " downloading " + url);
+
+        } else if (response.statusCode() != 200 && response.statusCode() != 206) {
+
+            throw new IOException("Unexpected response code " + response.statusCode() + " downloading " + url);
+
+        }
+
+        Partial expected = readPartial(meta);
+        if (expected != null && expected.length() >= 0 && Files.size(part) != expected.length()) {
+            throw new IOException("Download of " + url + " ended early: got " + Files.size(part) + " of "
+                    + expected.length() + " bytes");
+        }
+
+        return new Attempt(digest[0], response.statusCode() == 200);
+
+    }
+
+    /**
+     * @return a SHA-1 digest fed with the first length bytes of file
+     */
+    private static MessageDigest digestOf(Path file, long length) throws IOException {
+
+        MessageDigest digest = newSha1();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), remaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                remaining -= read;
+            }
+        }
+        return digest;
+
+    }
+
+    private static MessageDigest newSha1() {
+
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+    /**
+     * Writes a response body to a file and feeds every byte to a digest on the
+     * way, so the file's hash is known as soon as it has been written.
+     */
+    private static class HashingFileSubscriber implements HttpResponse.BodySubscriber<Path> {
+
+        private final Path file;
+        private final MessageDigest digest;
+        private final OpenOption[] options;
+        private final CompletableFuture<Path> result = new CompletableFuture<>();
+
+        private FileChannel channel;
+        private Flow.Subscription subscription;
+
+        HashingFileSubscriber(Path file, MessageDigest digest, OpenOption... options) {
+            this.file = file;
+            this.digest = digest;
+            this.options = options;
+        }
+
+        public CompletionStage<Path> getBody() {
+            return result;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+
+            try {
+                channel = FileChannel.open(file, options);
+            } catch (IOException e) {
+                subscription.cancel();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            this.subscription = subscription;
+            subscription.request(1);
+
+        }
+
+        public void onNext(List<ByteBuffer> buffers) {
+
+            try {
+                for (ByteBuffer buffer : buffers) {
+                    metrics.count("download_bytes_total", buffer.remaining());
+                    digest.update(buffer.duplicate());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                subscription.cancel();
+                close();
+                result.completeExceptionally(e);
+                return;
+            }
+
+            subscription.request(1);
+
+        }
+
+        public void onError(Throwable error) {
+            close();
+            result.completeExceptionally(error);
+        }
+
+        public void onComplete() {
+
+            try {
+                channel.close();
+                result.complete(file);
+            } catch (IOException e) {
+                result.completeExceptionally(e);
+            }
+
+        }
+
+        private void close() {
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // The write already failed, so there is nothing more to report
+            }
+
+        }
+
+    }
+
+    /**
+     * Prefers a strong ETag as the validator for If-Range, and falls back to
+     * Last-Modified. Weak ETags can not be used for range requests.
+     */
+    private static String validator(Optional<String> etag, Optional<String> lastModified) {
+
+        if (etag.isPresent() && !etag.get().startsWith("W/")) {
+            return etag.get();
+        }
+        return lastModified.orElse(null);
+
+    }
+
+    private static Partial readPartial(Path meta) {
+
+        if (!Files.exists(meta)) {
+            return null;
+        }
+
+        try (Reader reader = Files.newBufferedReader(meta, StandardCharsets.UTF_8)) {
+            JSONObject json = (JSONObject) new JSONParser().parse(reader);
+            return new Partial((String) json.get("url"), (long) json.get("length"), (String) json.get("validator"));
+        } catch (Exception e) {
+            // An unreadable sidecar just means the download can not be resumed
+            return null;
+        }
+
+    }
+
+    private static void writePartial(Path meta, Partial partial) {
+
+        JSONObject json = new JSONObject();
+        json.put("url", partial.url());
+        json.put("length", partial.length());
+        json.put("validator", partial.validator());
+
+        try {
+            Files.writeString(meta, json.toJSONString(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            // Without the sidecar the download still works, it just can not be resumed
+        }
+
+    }
+
+}
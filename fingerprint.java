@@ -0,0 +1,119 @@
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * CurseForge file fingerprints.
+ *
+ * A fingerprint is the 32-bit MurmurHash2 (seed 1) of a file with every tab,
+ * newline, carriage return and space removed. This is what the
+ * /v1/fingerprints endpoint matches against, so a jar can be identified
+ * without knowing which mod it belongs to.
+ *
+ * Files are read through a memory mapping: the whitespace has to be counted
+ * before hashing can start (the length is part of the seed), and mapping the
+ * file lets both passes run straight over the page cache.
+ */
+public class fingerprint {
+
+    private static final int M = 0x5bd1e995;
+    private static final int R = 24;
+    private static final int SEED = 1;
+
+    // Bytes that are left out of the fingerprint: tab, newline, carriage return and space
+    private static final boolean[] WHITESPACE = new boolean[256];
+    static {
+        WHITESPACE[9] = true;
+        WHITESPACE[10] = true;
+        WHITESPACE[13] = true;
+        WHITESPACE[32] = true;
+    }
+
+    // Bytes copied out of the mapping at a time
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Fingerprints every file in parallel.
+     *
+     * @return one result per file, in the same order as files
+     */
+    public static List<tasks.Result<Long>> scan(List<Path> files, int maxConcurrency) throws InterruptedException {
+        return tasks.runAll(files, maxConcurrency, fingerprint::of);
+    }
+
+    /**
+     * @return the CurseForge fingerprint of a file, as an unsigned 32-bit value
+     */
+    public static long of(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            byte[] chunk = new byte[CHUNK];
+
+            // First pass: the length of the file without whitespace
+            int length = 0;
+            while (buffer.hasRemaining()) {
+                int count = Math.min(CHUNK, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                for (int i = 0; i < count; i++) {
+                    if (!isWhitespace(chunk[i])) {
+                        length++;
+                    }
+                }
+            }
+
+            // Second pass: hash the remaining bytes four at a time, little-endian
+            buffer.rewind();
+            int h = SEED ^ length;
+            int word = 0;
+            int shift = 0;
+            while (buffer.hasRemaining()) {
+                int count = Math.min(CHUNK, buffer.remaining());
+                buffer.get(chunk, 0, count);
+                for (int i = 0; i < count; i++) {
+
+                    byte b = chunk[i];
+                    if (isWhitespace(b)) {
+                        continue;
+                    }
+
+                    word |= (b & 0xff) << shift;
+                    shift += 8;
+                    if (shift == 32) {
+                        word *= M;
+                        word ^= word >>> R;
+                        word *= M;
+                        h *= M;
+                        h ^= word;
+                        word = 0;
+                        shift = 0;
+                    }
+
+                }
+            }
+
+            // Mix in the last one to three bytes
+            if (shift > 0) {
+                h ^= word;
+                h *= M;
+            }
+
+            h ^= h >>> 13;
+            h *= M;
+            h ^= h >>> 15;
+
+            return h & 0xffffffffL;
+
+        }
+
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return WHITESPACE[b & 0xff];
+    }
+
+}
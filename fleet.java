@@ -0,0 +1,358 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Fleet mode (--fleet-check and --fleet-update): checks or updates many
+ * server directories in one run.
+ *
+ * Servers often share most of their mods. Instead of looking the same mods
+ * up once per server, a fleet check collects every mod of every server,
+ * looks each (mod, game version) pair up once, using the same bulk requests
+ * as -c, and then compares the results with each server's mod list in
+ * parallel. The number of API requests grows with the number of distinct
+ * mods, not with servers times mods.
+ *
+ * Like -c, a fleet check only looks up the files of mods that have changed
+ * since they were last checked, unless --full is given.
+ *
+ * A fleet update likewise downloads every distinct new file once into the
+ * jar cache, and then installs the updates of all servers in parallel from
+ * there. Without the jar cache (--no-cache), each server downloads its own
+ * files.
+ *
+ * The servers are given with --servers, either as a comma separated list of
+ * directories or as a file listing one directory per line. Each directory
+ * must have its own mods folder and mcmodmanager.json. Everything a server
+ * reports is printed together, under the server's directory, once it is
+ * done.
+ */
+public class fleet {
+
+    // The server directories given with --servers
+    public static List<Path> servers = new ArrayList<>();
+
+    /**
+     * One server directory and its loaded config.
+     */
+    private static class Server {
+
+        final Path dir;
+        final config cfg;
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(log, true, StandardCharsets.UTF_8);
+
+        Server(Path dir, config cfg) {
+            this.dir = dir;
+            this.cfg = cfg;
+        }
+
+        Path modsDir() {
+            return dir.resolve("mods");
+        }
+
+    }
+
+    /**
+     * Reads the argument of --servers: a comma separated list of directories,
+     * or a file listing one directory per line. Blank lines and lines starting
+     * with # are ignored.
+     */
+    public static void setServers(String arg) {
+
+        servers.clear();
+
+        Path file = Paths.get(arg);
+        if (Files.isRegularFile(file)) {
+            try {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    if (!line.isBlank() && !line.trim().startsWith("#")) {
+                        servers.add(Paths.get(line.trim()));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
+        for (String dir : arg.split(",")) {
+            if (!dir.isBlank()) {
+                servers.add(Paths.get(dir.trim()));
+            }
+        }
+
+    }
+
+    /**
+     * Checks every server for updates, looking every distinct mod up once.
+     *
+     * @param version the minecraft version to check every server for, or null
+     *                to check each server for its own server version
+     */
+    public static void check(String version) {
+
+        List<Server> fleet = load();
+
+        try {
+
+            // Every distinct mod
+            Set<String> modIDs = new LinkedHashSet<>();
+            int entries = 0;
+            for (Server server : fleet) {
+                for (config.Mod mod : server.cfg.mods()) {
+                    modIDs.add(mod.modID());
+                    entries++;
+                }
+            }
+
+            // Look every mod up once
+            long passStart = System.nanoTime();
+            ModManager.requestLatencies.clear();
+            Map<String, JSONObject> modInfos = ModManager.getModsBulk(new ArrayList<>(modIDs), true);
+
+            // The mods that some server needs looked up, for each game version.
+            // A mod is only left out if it is unchanged for every server.
+            Map<String, Set<String>> byVersion = new LinkedHashMap<>();
+            for (Server server : fleet) {
+                String gameVersion = version != null ? version : server.cfg.serverVersion();
+                Set<String> wanted = byVersion.computeIfAbsent(gameVersion, key -> new LinkedHashSet<>());
+                for (config.Mod mod : server.cfg.mods()) {
+                    if (!ModManager.unchanged(mod, modInfos.get(mod.modID()), gameVersion)) {
+                        wanted.add(mod.modID());
+                    }
+                }
+            }
+
+            // Find the newest file of those mods once per game version
+            int lookups = 0;
+            Map<String, Map<String, tasks.Result<JSONObject>>> latest = new HashMap<>();
+            for (Map.Entry<String, Set<String>> entry : byVersion.entrySet()) {
+                Map<String, JSONObject> wanted = new HashMap<>();
+                for (String modID : entry.getValue()) {
+                    if (modInfos.containsKey(modID)) {
+                        wanted.put(modID, modInfos.get(modID));
+                    }
+                }
+                lookups += wanted.size();
+                latest.put(entry.getKey(), ModManager.getLatestFiles(wanted, entry.getKey(), true));
+            }
+            long passNanos = System.nanoTime() - passStart;
+
+            // Compare the results with every server's mod list and save them
+            List<tasks.Result<Integer>> results = tasks.runAll(fleet, ModManager.maxConcurrency, server -> {
+                String gameVersion = version != null ? version : server.cfg.serverVersion();
+                int updates = ModManager.reportUpdates(server.cfg, modInfos, latest.get(gameVersion), gameVersion,
+                        server.out);
+                server.cfg.flush();
+                return updates;
+            });
+
+            int updates = report(fleet, results, "updates available");
+
+            System.out.printf("Checked %d servers (%d mods, %d distinct, %d looked up for %d game versions) in %d ms "
+                    + "using %d API requests; %d updates available%n", fleet.size(), entries, modIDs.size(), lookups,
+                    byVersion.size(), passNanos / 1_000_000, ModManager.requestLatencies.size(), updates);
+            System.out.println(apicache.summary());
+            System.out.println(scheduler.summary());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Installs the saved updates of every server, downloading every distinct
+     * file once.
+     */
+    public static void update() {
+
+        List<Server> fleet = load();
+
+        try {
+
+            // Put every distinct new file in the jar cache first, so that the
+            // servers below only link it into place
+            if (jarcache.dir != null) {
+                prefetch(fleet);
+            }
+
+            // Split -j between the servers, so no more than that many files are
+            // downloaded at once in total
+            int perServer = Math.max(1, ModManager.maxConcurrency / fleet.size());
+            List<tasks.Result<Integer>> results = tasks.runAll(fleet, ModManager.maxConcurrency, server -> {
+                int updated = ModManager.updateMods(server.cfg, server.modsDir(), perServer, server.out);
+                server.cfg.flush();
+                return updated;
+            });
+
+            int updated = report(fleet, results, "mods updated");
+            System.out.printf("Updated %d mods on %d servers%n", updated, fleet.size());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Loads the config of every server and checks its mod files. Servers that
+     * can not be loaded are reported and left out.
+     */
+    private static List<Server> load() {
+
+        if (servers.isEmpty()) {
+            System.out.println("No servers given. List the server directories with --servers.");
+            System.exit(1);
+        }
+
+        List<Server> fleet = new ArrayList<>();
+        for (Path dir : servers) {
+
+            try {
+                staging.recover(dir.resolve("mods"));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            if (!Files.isDirectory(dir.resolve("mods"))) {
+                System.out.println(dir + ": Can not find the mods folder, skipping this server");
+                continue;
+            }
+
+            try {
+                String path = dir.resolve(config.FILE_NAME).toString();
+                fleet.add(new Server(dir, metrics.time("config_load", () -> config.load(path))));
+            } catch (Exception e) {
+                System.out.println(dir + ": Can not read " + config.FILE_NAME + " (" + e.getMessage()
+                        + "), skipping this server");
+            }
+
+        }
+
+        if (fleet.isEmpty()) {
+            System.out.println("None of the servers could be loaded.");
+            System.exit(1);
+        }
+
+        // The API key of the first server that has one is used for all of them
+        for (Server server : fleet) {
+            if (server.cfg.apiKey() != null && !server.cfg.apiKey().isEmpty()) {
+                ModManager.apiKey = server.cfg.apiKey();
+                break;
+            }
+        }
+        if (ModManager.apiKey == null) {
+            ModManager.apiKey = init.apiKey(fleet.get(0).cfg);
+        }
+
+        for (Server server : fleet) {
+            init.fileCheck(server.cfg, server.modsDir(), server.out);
+        }
+        metrics.gauge("fleet_servers", fleet.size());
+
+        return fleet;
+
+    }
+
+    /**
+     * Downloads every distinct file that some server has a saved update for
+     * into the jar cache, once.
+     */
+    private static void prefetch(List<Server> fleet) throws Exception {
+
+        Map<Long, JSONObject> files = new LinkedHashMap<>();
+        for (Server server : fleet) {
+            for (config.Mod mod : server.cfg.mods()) {
+                if (mod.update() != null) {
+                    files.putIfAbsent((long) mod.update().get("newFileID"), mod.update());
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            return;
+        }
+
+        // Downloads go to a folder in the cache, so they can be hardlinked into it
+        Path staging = jarcache.dir.resolve("fleet-" + ProcessHandle.current().pid());
+        Files.createDirectories(staging);
+
+        try {
+
+            List<Map.Entry<Long, JSONObject>> pending = new ArrayList<>(files.entrySet());
+            List<tasks.Result<Void>> results = tasks.runAll(pending, ModManager.maxConcurrency, entry -> {
+                JSONObject update = entry.getValue();
+                Path file = staging.resolve(entry.getKey() + ".jar");
+                try {
+                    ModManager.installFile((String) update.get("newDownloadLink"), entry.getKey(), file.toString(),
+                            (String) update.get("newSha1"));
+                } finally {
+                    Files.deleteIfExists(file);
+                }
+                return null;
+            });
+
+            // A file that could not be fetched here is tried again, and reported,
+            // by every server that needs it
+            int fetched = 0;
+            for (tasks.Result<Void> result : results) {
+                if (result.error() == null) {
+                    fetched++;
+                }
+            }
+            System.out.println("Fetched " + fetched + " of " + pending.size() + " distinct files");
+
+        } finally {
+            try (var leftovers = Files.list(staging)) {
+                for (Path path : (Iterable<Path>) leftovers::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+            Files.deleteIfExists(staging);
+        }
+
+    }
+
+    /**
+     * Prints what each server reported, in the order the servers were given.
+     *
+     * @return the sum of the counts the servers returned
+     */
+    private static int report(List<Server> fleet, List<tasks.Result<Integer>> results, String what) {
+
+        int total = 0;
+        for (int i = 0; i < fleet.size(); i++) {
+
+            Server server = fleet.get(i);
+            tasks.Result<Integer> result = results.get(i);
+
+            System.out.println("== " + server.dir + " ==");
+            System.out.print(server.log.toString(StandardCharsets.UTF_8));
+            if (result.error() != null) {
+                System.out.println("Failed: " + result.error().getMessage());
+            } else {
+                System.out.println(result.value() + " " + what);
+                total += result.value();
+            }
+            System.out.println();
+
+        }
+        return total;
+
+    }
+
+}
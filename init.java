@@ -1,35 +1,46 @@
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.util.Scanner;
-
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class init {
 
-    public static void configFile() {
+    // The suffixes of the temporary files a download leaves while it is running
+    private static final String[] TEMP_SUFFIXES = { ".part.json", ".part", ".link" };
+
+    /**
+     * Loads mcmodmanager.json. If the file does not exist a new one is
+     * generated and the program exits so the user can fill it in.
+     *
+     * @return the loaded config
+     */
+    public static config configFile() {
 
+        // Finish swapping in an update or rollback that was interrupted. This
+        // can replace the mod list, so it has to happen before it is loaded.
         try {
+            staging.recover(ModManager.modsDir());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            // Check if JSON file exists
-            JSONParser parser = new JSONParser();
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+        try {
+
+            return metrics.time("config_load", () -> config.load(ModManager.configPath()));
 
         } catch (FileNotFoundException e) {
 
             // If file does not exist, create a new file
-            JSONObject obj = new JSONObject();
-            obj.put("apiKey", "");
-            obj.put("mods", new JSONArray());
-            obj.put("serverVersion", "");
             try {
 
-                FileWriter file = new FileWriter("mcmodmanager.json");
-                file.write(obj.toJSONString());
-                file.close();
+                config.empty(ModManager.configPath()).flush();
 
                 System.out.println("Config file not found. A new one has been generated.");
 
@@ -47,17 +58,20 @@ public class init {
             System.exit(0);
         }
 
+        return null;
+
     }
 
     /**
-     * modFolder method checks if a folder called "mods" exists in the current
+     * modFolder method checks if a folder called "mods" exists in the server
      * directory.
      * If the folder exists, the method does nothing.
      * If the folder does not exist, the method will notify the user that the folder
      * is missing and exit the program.
      */
     public static void modFolder() {
-        File modFolder = new File("./mods");
+
+        File modFolder = ModManager.modsDir().toFile();
         if (!modFolder.exists()) {
             System.out.println(
                     "Can not find the mods folder. Make sure you are running this program in the same directory as the mods folder for your server.");
@@ -65,86 +79,171 @@ public class init {
         }
     }
 
-    public static String apiKey() {
-
-        String apiKey = "";
-
-        try {
-
-            // Open config file
-            JSONParser parser = new JSONParser();
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+    public static String apiKey(config cfg) {
 
-            // Check if current api entry is blank
-            apiKey = (String) jsonData.get("apiKey");
-            if (apiKey.equals("")) {
+        // Check if current api entry is blank
+        String apiKey = cfg.apiKey();
+        if (apiKey == null || apiKey.equals("")) {
 
-                System.out.println(
-                        "No API key found.\nSet an API key by using the -k flag.\nSee usage (-h) for more information.");
-                System.exit(0);
-
-            }
-
-        } catch (Exception e) {
-            e.printStackTrace();
+            System.out.println(
+                    "No API key found.\nSet an API key by using the -k flag.\nSee usage (-h) for more information.");
             System.exit(0);
+
         }
 
         return apiKey;
 
     }
 
-    public static void fileCheck() {
+    /**
+     * fileCheck makes sure every mod in the mod list has an intact file in the
+     * mods folder. The folder is listed once and compared with the mod list in
+     * memory, and everything that does not line up is reported together:
+     *
+     * - missing files, which are in the mod list but not in the folder
+     * - damaged files, whose size differs from the size CurseForge published
+     * for them, or, when --verify is given, whose SHA-1 does not match
+     * - untracked jars, which are in the folder but not in the mod list
+     * - orphaned files left over from interrupted downloads
+     *
+     * Missing and damaged files are then handled without asking, according to
+     * --on-missing: they are all downloaded again in parallel (redownload, the
+     * default), removed from the mod list (remove), or the run stops (fail).
+     */
+    public static void fileCheck(config cfg) {
+        fileCheck(cfg, ModManager.modsDir(), System.out);
+    }
+
+    /**
+     * Same as fileCheck(cfg), for the given mods folder.
+     *
+     * @param out where to report what was found
+     */
+    public static void fileCheck(config cfg, Path modsDir, PrintStream out) {
+        metrics.time("file_check", () -> checkFiles(cfg, modsDir, out));
+    }
+
+    private static void checkFiles(config cfg, Path modsDir, PrintStream out) {
 
-        JSONParser parser = new JSONParser();
         try {
 
-            // Open JSON file
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+            // List the mods folder once
+            Map<String, File> onDisk = new HashMap<>();
+            File[] files = modsDir.toFile().listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    onDisk.put(file.getName(), file);
+                }
+            }
+
+            // Every file name the mod list expects, including the temporary
+            // files of a pending update's download that was interrupted
+            Set<String> expected = new HashSet<>();
+            for (config.Mod mod : cfg.mods()) {
+                expected.add(mod.fileName());
+                if (mod.update() != null) {
+                    for (String suffix : TEMP_SUFFIXES) {
+                        expected.add(mod.update().get("newFileName") + suffix);
+                    }
+                }
+            }
+
+            // Hash the mod files in parallel when a full integrity check was asked for
+            List<config.Mod> mods = new ArrayList<>(cfg.mods());
+            List<tasks.Result<String>> hashes = null;
+            if (ModManager.verifyFiles) {
+                hashes = tasks.runAll(mods, ModManager.maxConcurrency, mod -> {
+                    File modFile = onDisk.get(mod.fileName());
+                    return mod.sha1() != null && modFile != null ? jarcache.sha1(modFile.toPath()) : null;
+                });
+            }
 
-            // Get mods array
-            JSONArray modsArray = (JSONArray) jsonData.get("mods");
+            // Find the mods whose file is missing or damaged
+            List<config.Mod> broken = new ArrayList<>();
+            for (int i = 0; i < mods.size(); i++) {
+
+                config.Mod mod = mods.get(i);
+                File modFile = onDisk.get(mod.fileName());
+                String problem = null;
+                if (modFile == null) {
+                    problem = "could not be found in the mods folder";
+                } else if (mod.fileLength() != null && modFile.length() != mod.fileLength()) {
+                    problem = "is damaged (its size is wrong)";
+                } else if (hashes != null && hashes.get(i).value() != null
+                        && !hashes.get(i).value().equalsIgnoreCase(mod.sha1())) {
+                    problem = "is damaged (its SHA-1 hash is wrong)";
+                }
 
-            // For each mod...
-            for (int i = 0; i < modsArray.size(); i++) {
+                if (problem != null) {
+                    out.println("ERROR: The " + mod.name() + " mod file " + problem + ".");
+                    broken.add(mod);
+                }
 
-                // Get mod info
-                JSONObject mod = (JSONObject) modsArray.get(i);
-                String name = (String) mod.get("name");
-                String fileName = (String) mod.get("fileName");
-                String modID = (String) mod.get("modID");
-                String downloadLink = (String) mod.get("downloadLink");
+            }
+
+            // Report the files the mod list does not know about
+            List<String> unknown = new ArrayList<>(onDisk.keySet());
+            Collections.sort(unknown);
+            for (String name : unknown) {
 
-                // Check if the mod file exists in the mod folder
-                File modFile = new File("./mods/" + fileName);
-                if (!modFile.exists()) {
+                if (expected.contains(name) || expected.contains(stripTempSuffix(name))) {
+                    continue;
+                }
 
-                    // If the mod file doesnt exist, ask the user how they want to proceed
-                    System.out.println("ERROR: The " + name + " mod file could not be found in the mods folder.");
-                    Scanner scanner = new Scanner(System.in);
-                    System.out.println(
-                            "Do you want to redownload the mod file or remove it from the mod list? Type 'add' or 'remove':");
-                    String response = scanner.nextLine();
+                if (name.endsWith(".jar")) {
+                    out.println("WARNING: " + name + " is not in the mod list. Use --scan to add it.");
+                } else if (!name.equals(stripTempSuffix(name))) {
+                    out.println("WARNING: " + name + " is left over from an interrupted download.");
+                }
 
-                    if (response.equals("add")) {
+            }
 
-                        // Re download the mod
-                        ModManager.downloadFile(downloadLink, "./mods/" + fileName);
-                        System.out.println("Mod has been added");
+            if (broken.isEmpty()) {
+                return;
+            }
 
-                    } else if (response.equals("remove")) {
+            switch (ModManager.onMissing) {
 
-                        // Remove the mod from the mod list
-                        ModManager.removeMod(modID);
-                        System.out.println("Mod has been removed");
+                case "fail":
+                    out.println(broken.size() + " mod files are missing or damaged. Stopping.");
+                    System.exit(1);
+                    break;
 
-                    } else {
+                case "remove":
 
-                        System.out.println("Invalid input");
-                        System.exit(0);
+                    // Save the mod list first, so that a crash can not leave
+                    // mods in it whose files are gone
+                    for (config.Mod mod : broken) {
+                        cfg.removeMod(mod.modID());
+                    }
+                    cfg.flush();
 
+                    for (config.Mod mod : broken) {
+                        modsDir.resolve(mod.fileName()).toFile().delete();
+                        out.println(mod.name() + " has been removed from the mod list");
                     }
-                }
+                    break;
+
+                default:
+
+                    // redownload, the only other policy parseOptions accepts.
+                    // Download all of the files again at once
+                    List<tasks.Result<Void>> results = tasks.runAll(broken, ModManager.maxConcurrency, mod -> {
+                        ModManager.installFile(mod.downloadLink(), mod.fileID(),
+                                modsDir.resolve(mod.fileName()).toString(), mod.sha1());
+                        return null;
+                    });
+
+                    for (int i = 0; i < broken.size(); i++) {
+                        config.Mod mod = broken.get(i);
+                        if (results.get(i).error() != null) {
+                            out.println(mod.name() + " could not be downloaded again: "
+                                    + results.get(i).error().getMessage());
+                        } else {
+                            out.println(mod.name() + " has been downloaded again");
+                        }
+                    }
+                    break;
 
             }
 
@@ -154,4 +253,19 @@ public class init {
 
     }
 
+    /**
+     * @return name without the suffix of a temporary download file, or name
+     *         itself if it is not one
+     */
+    private static String stripTempSuffix(String name) {
+
+        for (String suffix : TEMP_SUFFIXES) {
+            if (name.endsWith(suffix)) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+
+    }
+
 }
@@ -0,0 +1,255 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONObject;
+
+/**
+ * A content-addressed cache of mod jars that can be shared by many server
+ * directories.
+ *
+ * Every jar is stored once as "<fileID>-<sha1>.jar" in the cache directory
+ * and hardlinked (or copied, if the cache is on another file system) into a
+ * server's mods folder when it is needed. A cached file's modification time
+ * is bumped whenever it is used, and the least recently used files are
+ * evicted once the cache grows past its size limit (see cachedir).
+ *
+ * Hit and miss counts are kept in stats.json in the cache directory, so that
+ * they add up across runs and servers.
+ */
+public class jarcache {
+
+    // The shared cache directory, or null if the cache is disabled
+    public static Path dir = Paths.get(System.getProperty("user.home"), ".cache", "mcmodmanager", "jars");
+
+    // The cache is trimmed back to this many bytes at the end of every run
+    public static long maxBytes = 2048L * 1024 * 1024;
+
+    // The files in the cache directory that are cached jars
+    private static final String ENTRY_GLOB = "*.jar";
+
+    // Counts for this run, added to stats.json by saveStats()
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong bytesSaved = new AtomicLong();
+
+    /**
+     * Puts the cached copy of a file at target, if the cache has one.
+     *
+     * @param fileID       the CurseForge ID of the file
+     * @param target       where the file should be placed
+     * @param expectedSha1 the hex SHA-1 the file must have, or null if it is not
+     *                     known
+     * @return true if the file was served from the cache, false if it has to be
+     *         downloaded
+     */
+    public static boolean fetch(long fileID, Path target, String expectedSha1) {
+
+        if (dir == null) {
+            return false;
+        }
+
+        try {
+
+            Path cached = find(fileID);
+            if (cached != null && expectedSha1 != null
+                    && !cached.getFileName().toString().equals(entryName(fileID, expectedSha1.toLowerCase()))) {
+                cached = null;
+            }
+
+            if (cached == null || !cached.getFileName().toString().equals(entryName(fileID, sha1(cached)))) {
+
+                // Not cached, or the cached copy no longer matches its hash
+                if (cached != null) {
+                    Files.deleteIfExists(cached);
+                }
+                countMiss();
+                return false;
+
+            }
+
+            place(cached, target);
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+
+            long size = Files.size(cached);
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(size);
+            metrics.count("jar_cache_total", "result", "hit", 1);
+            metrics.count("jar_cache_bytes_saved_total", size);
+            return true;
+
+        } catch (IOException e) {
+            countMiss();
+            return false;
+        }
+
+    }
+
+    private static void countMiss() {
+        misses.incrementAndGet();
+        metrics.count("jar_cache_total", "result", "miss", 1);
+    }
+
+    /**
+     * Adds a downloaded file to the cache. Failing to cache a file is not an
+     * error; it just means it will be downloaded again next time.
+     *
+     * @param fileID the CurseForge ID of the file
+     * @param file   the downloaded file
+     * @param sha1   the hex SHA-1 of the file, as computed while downloading it
+     */
+    public static void store(long fileID, Path file, String sha1) {
+
+        if (dir == null) {
+            return;
+        }
+
+        try {
+
+            Files.createDirectories(dir);
+            Path entry = dir.resolve(entryName(fileID, sha1.toLowerCase()));
+            if (!Files.exists(entry)) {
+
+                // Link or copy under a temporary name first so that other
+                // processes never see a half-written entry
+                Path temp = dir.resolve(entry.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+                Files.deleteIfExists(temp);
+                place(file, temp);
+                try {
+                    Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    // Another server cached the same file at the same time
+                    Files.deleteIfExists(temp);
+                }
+
+            }
+
+        } catch (IOException e) {
+            System.out.println("Could not add " + file.getFileName() + " to the jar cache: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Adds the counts from this run to stats.json and evicts the least recently
+     * used files if the cache is over its size limit.
+     */
+    public static void saveStats() {
+
+        if (dir == null || hits.get() + misses.get() == 0) {
+            return;
+        }
+
+        try {
+            cachedir.saveStats(dir, ENTRY_GLOB, maxBytes,
+                    Map.of("hits", hits, "misses", misses, "bytesSaved", bytesSaved));
+        } catch (IOException e) {
+            System.out.println("Could not save the jar cache stats: " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * Prints the hit rate, bytes saved and size of the cache.
+     */
+    public static void printStats() throws IOException {
+
+        if (dir == null) {
+            System.out.println("The jar cache is disabled");
+            return;
+        }
+
+        JSONObject stats = cachedir.readStats(dir);
+        long hitCount = (long) stats.getOrDefault("hits", 0L);
+        long missCount = (long) stats.getOrDefault("misses", 0L);
+        long saved = (long) stats.getOrDefault("bytesSaved", 0L);
+
+        List<Path> entries = cachedir.entries(dir, ENTRY_GLOB);
+        long total = cachedir.size(entries);
+
+        System.out.println("Jar cache: " + dir);
+        System.out.printf("    %d files, %.1f MB of %.1f MB%n", entries.size(), total / 1048576.0,
+                maxBytes / 1048576.0);
+        System.out.printf("    %d hits, %d misses (%.1f%% hit rate)%n", hitCount, missCount,
+                hitCount + missCount == 0 ? 0 : 100.0 * hitCount / (hitCount + missCount));
+        System.out.printf("    %.1f MB of downloads saved%n", saved / 1048576.0);
+
+    }
+
+    /**
+     * @return the cached file with the given file ID, or null if there is none
+     */
+    private static Path find(long fileID) throws IOException {
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, fileID + "-*.jar")) {
+            for (Path entry : stream) {
+                return entry;
+            }
+        } catch (NoSuchFileException e) {
+            // The cache directory has not been created yet
+        }
+        return null;
+
+    }
+
+    private static String entryName(long fileID, String sha1) {
+        return fileID + "-" + sha1 + ".jar";
+    }
+
+    /**
+     * Hardlinks source to target, or copies it if a link is not possible (for
+     * example because they are on different file systems). Any existing file
+     * at target is replaced.
+     */
+    private static void place(Path source, Path target) throws IOException {
+
+        Path temp = Paths.get(target + ".link");
+        Files.deleteIfExists(temp);
+
+        try {
+            Files.createLink(temp, source);
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+    }
+
+    public static String sha1(Path file) throws IOException {
+
+        try (InputStream is = Files.newInputStream(file)) {
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[64 * 1024];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, length);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+    }
+
+}
@@ -3,41 +3,185 @@ import org.json.simple.JSONObject;
 import org.json.simple.parser.JSONParser;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
 import java.net.URI;
-import java.net.URL;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 class ModManager {
 
     public static String apiKey;
 
+    // The contents of mcmodmanager.json, loaded once per run
+    public static config cfg;
+
+    // The server directory, which holds the mods folder and mcmodmanager.json.
+    // The working directory unless --dir is given.
+    public static Path serverDir = Paths.get(".");
+
+    // Base URL of the CurseForge API. Can be pointed at a local stand-in with --api-url
+    public static String apiBaseUrl = "https://api.curseforge.com";
+
+    // How long to wait for a connection to be established, and for a response to arrive
+    public static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+    public static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+
+    // How long to wait for a download to start sending the file
+    public static final Duration DOWNLOAD_TIMEOUT = Duration.ofSeconds(60);
+
+    // The HttpClient reads responses in buffers of this size (the JDK default is
+    // 16 KB). Larger buffers mean far fewer read and write system calls when a
+    // download is streamed to disk. This has to be set before the client is built.
+    static {
+        if (System.getProperty("jdk.httpclient.bufsize") == null) {
+            System.setProperty("jdk.httpclient.bufsize", String.valueOf(256 * 1024));
+        }
+    }
+
+    // One client is shared by every request made during a run so that connections
+    // (and their TLS sessions) are kept alive and reused. Over HTTPS the client
+    // negotiates HTTP/2, which multiplexes concurrent requests over one connection.
+    public static final HttpClient httpClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    // Maximum number of CurseForge requests that may be in flight at once
+    public static int maxConcurrency = 8;
+
+    // Whether the startup file check should also compare every mod file's SHA-1
+    public static boolean verifyFiles = false;
+
+    // List what -a would install without changing anything
+    public static boolean dryRun = false;
+
+    // Look up every mod's files on -c, even the mods that have not changed
+    // since they were last checked
+    public static boolean fullCheck = false;
+
+    // What the startup file check does with missing or damaged mod files:
+    // "redownload", "remove" or "fail"
+    public static String onMissing = "redownload";
+
+    // The fields of CurseForge mod and file objects that are used anywhere. API
+    // responses are parsed down to just these fields (see projection).
+    public static final String[] MOD_FIELDS = { "id", "name", "dateModified", "latestFilesIndexes.*.gameVersion",
+            "latestFilesIndexes.*.fileId" };
+    public static final String[] FILE_FIELDS = { "id", "modId", "fileName", "downloadUrl", "fileLength", "fileDate",
+            "releaseType", "gameVersions", "hashes", "dependencies", "fileFingerprint" };
+
+    private static final projection.Fields MOD_PROJECTION = projection.Fields.of("data.*", MOD_FIELDS);
+    private static final projection.Fields FILES_PROJECTION = projection.Fields.of("data.*", FILE_FIELDS);
+    private static final projection.Fields NEWEST_FILE_PROJECTION = projection.Fields.of("data.0", FILE_FIELDS);
+    private static final projection.Fields FINGERPRINT_PROJECTION = projection.Fields.of("data.exactMatches.*.file",
+            FILE_FIELDS);
+
+    // How many IDs to send in a single request to the bulk mods and files endpoints
+    public static final int BULK_CHUNK_SIZE = 50;
+
+    // Latency of every API request made during the run, in nanoseconds
+    public static final List<Long> requestLatencies = Collections.synchronizedList(new ArrayList<>());
+
     public static void printUsage() {
+        printUsage(0);
+    }
+
+    /**
+     * Prints the usage and exits with the given status.
+     */
+    public static void printUsage(int status) {
 
         String usage = """
                 usage: java mcmodmanager.java [OPTIONS]
 
                 OPTIONS:
-                    -a ModID,   --add-mod ModID         Adds a new mod to mod list and installs it
+                    -a ModID,   --add-mod ModID...      Adds new mods and the mods they require to mod list and installs them
                     -c VERSION, --check-updates VERSION check for any available updates for all mods
                     -h,         --help                  print usage information
                     -k API_KEY, --api-key API_KEY       Sets your CurseForge API key
                     -r ModID,   --remove-mod ModID      Removes a mod from the mod list and uninstalls it
                     -s VERSION, --set-version           Sets which server version you are running
-                    -u,         --update                Updates all mods
-                    """;
+                    -u,         --update                Installs all updates found by --check-updates
+                                --rollback              Puts back the mods folder and mod list from before the last update
+
+                                --scan                  Adds the untracked jars in the mods folder to the mod list
+                                --daemon [VERSION]      Keeps running and checks for updates on a schedule
+                                --storage MODE          Sets how the mod list is saved: 'json' or 'journal'
+                                --import FILE           Replaces the mod list with the contents of FILE
+                                --export FILE           Writes the mod list to FILE in the mcmodmanager.json format
+                                --cache-stats           Prints the hit rates and sizes of the jar and API caches
+                                --plan VERSION,...      Shows which mods have files for each of the versions, without
+                                                        changing the mod list
+                                --full                  With -c, look up every mod, not only those changed since the last check
+                                --fleet-check [VERSION] Checks every server given with --servers, looking each mod up once
+                                --fleet-update          Installs the updates of every server given with --servers
+
+                    -j N,       --jobs N                Number of requests or downloads to run at once (default 8)
+                                --dir DIR               Use the server in DIR instead of the current directory
+                                --servers DIRS          With --fleet-*, the server directories: DIR,DIR,... or a file
+                                                        listing one directory per line
+                                --api-url URL           Use a different CurseForge API base URL
+                                --rate N                Start at most N CurseForge API requests per second (default 20)
+                                --attempts N            Try each CurseForge API request at most N times (default 5)
+                                --metrics FILE          Write timings and counters to FILE: JSON if it ends in .json,
+                                                        otherwise the Prometheus text format
+                                --cache-dir DIR         Share downloaded jars through DIR (default ~/.cache/mcmodmanager/jars)
+                                --cache-size MB         Maximum size of the jar cache (default 2048)
+                                --no-cache              Do not use the jar cache
+                                --interval MINUTES      With --daemon, how often to check for updates (default 60)
+                                --auto-update           With --daemon, install updates when they are found
+                                --window HH:MM-HH:MM    With --auto-update, only install updates in this window
+                                --control-port PORT     With --daemon, the port of the status endpoint on 127.0.0.1 (default 8754).
+                                                        POST requests need the token in mcmodmanager.token
+                                --dry-run               With -a, list the mods and required dependencies that would be installed
+                                --offline               Answer every API lookup from the API cache, whatever its age
+                                --no-api-cache          Do not cache CurseForge API responses
+                                --verify                Check the SHA-1 hash of every mod file before running
+                                --on-missing POLICY     What to do with missing or damaged mod files:
+                                                        'redownload' (default), 'remove' or 'fail'
+                """;
         System.out.println(usage);
-        System.exit(0);
+        System.exit(status);
 
     }
 
+    /**
+     * @return the mods folder of the server directory
+     */
+    public static Path modsDir() {
+        return serverDir.resolve("mods");
+    }
+
+    /**
+     * @return the path of mcmodmanager.json in the server directory
+     */
+    public static String configPath() {
+        return serverDir.resolve(config.FILE_NAME).toString();
+    }
+
     /**
      * This function is used to set the API key for curseforge.
      *
@@ -45,47 +189,70 @@ class ModManager {
      */
     public static void setAPIKey(String key) {
 
-        JSONParser parser = new JSONParser();
+        // Add or overwrite the users key in the config
+        cfg.setApiKey(key);
 
-        try {
+    }
 
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+    /**
+     * This function is used to set the server version that you are running
+     *
+     * @param key The server verison to be set.
+     */
+    public static void setServerVersion(String version) {
 
-            // Add or overwrite the users key to the JSON data
-            jsonData.put("apiKey", key);
+        // Add or overwrite the version in the config
+        cfg.setServerVersion(version);
 
-            // Write the updated data back to the JSON file
-            FileWriter file = new FileWriter("mcmodmanager.json");
-            file.write(jsonData.toJSONString());
-            file.close();
+    }
 
-        } catch (Exception e) {
-            e.printStackTrace();
+    /**
+     * This function is used to choose how the mod list is saved.
+     *
+     * @param mode 'json' to rewrite mcmodmanager.json on every change, or
+     *             'journal' to append changes to a journal that is periodically
+     *             compacted into mcmodmanager.json
+     */
+    public static void setStorageMode(String mode) {
+
+        if (!mode.equals(storage.JSON) && !mode.equals(storage.JOURNAL)) {
+            System.out.println("Unknown storage mode '" + mode + "'. Use 'json' or 'journal'.");
+            return;
         }
 
+        cfg.setStorageMode(mode);
+        System.out.println("The mod list will now be saved using the " + mode + " storage mode");
+
     }
 
     /**
-     * This function is used to set the server version that you are running
+     * This function replaces the mod list with one read from a file in the
+     * mcmodmanager.json format.
      *
-     * @param key The server verison to be set.
+     * @param file the file to import
      */
-    public static void setServerVersion(String version) {
-
-        JSONParser parser = new JSONParser();
+    public static void importConfig(String file) {
 
         try {
+            cfg.importFrom(file);
+            System.out.println("Imported " + cfg.mods().size() + " mods from " + file);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
 
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
-
-            // Add or overwrite the version in the JSON data
-            jsonData.put("serverVersion", version);
+    }
 
-            // Write the updated data back to the JSON file
-            FileWriter file = new FileWriter("mcmodmanager.json");
-            file.write(jsonData.toJSONString());
-            file.close();
+    /**
+     * This function writes the mod list, with all journaled changes applied, to
+     * a file in the mcmodmanager.json format.
+     *
+     * @param file the file to export to
+     */
+    public static void exportConfig(String file) {
 
+        try {
+            cfg.exportTo(file);
+            System.out.println("Exported " + cfg.mods().size() + " mods to " + file);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -94,230 +261,682 @@ class ModManager {
 
     /**
      * This function makes an API call to the CurseForge API and returns the
-     * response as a JSONObject.
+     * response as a JSONObject. Responses are cached on disk (see apicache): a
+     * fresh cached response is returned without a request, and a stale one is
+     * revalidated with a conditional request when the API sent a validator.
      *
      * @param endpoint The endpoint of the API call. This should not include the
      *                 base URL or any query parameters.
      * @param params   The query parameters for the API call. This should not
      *                 include the endpoint or the base URL.
      * @return A JSONObject representing the API response.
-     * @throws Exception if an error occurs during the API call or if the response
-     *                   code is not 200.
+     * @throws Exception if an error occurs during the API call, if the response
+     *                   code is not 200 or 304, or if running offline and the
+     *                   response is not cached.
      */
     public static JSONObject curseForgeAPICall(String endpoint, String params) throws Exception {
+        return curseForgeAPICall(endpoint, params, null);
+    }
+
+    /**
+     * Same as curseForgeAPICall(endpoint, params), but only the given fields of
+     * the response are parsed and kept (see projection).
+     *
+     * @param fields the fields to keep, or null to keep the whole response
+     */
+    public static JSONObject curseForgeAPICall(String endpoint, String params, projection.Fields fields)
+            throws Exception {
+        return curseForgeAPICall(endpoint, params, fields, false);
+    }
+
+    /**
+     * Same as curseForgeAPICall(endpoint, params, fields), but with fresh set a
+     * cached response is used only once the server confirms it has not
+     * changed, however recently it was stored. --offline still answers from
+     * the cache.
+     */
+    public static JSONObject curseForgeAPICall(String endpoint, String params, projection.Fields fields,
+            boolean fresh) throws Exception {
 
-        // Create a new HttpClient
-        HttpClient client = HttpClient.newHttpClient();
+        apicache.Key key = new apicache.Key(apiBaseUrl, endpoint + params, fields);
+        apicache.Entry cached = apicache.get(key);
+
+        if (cached != null && (apicache.offline || (!fresh && cached.isFresh(key)))) {
+            apicache.countHit();
+            return cached.body();
+        }
+        if (apicache.offline) {
+            throw new IOException(endpoint + params + " is not in the API cache, and --offline was given");
+        }
 
         // Create a new HttpRequest with the API endpoint URL and the x-api-key header
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(apiBaseUrl + endpoint + params))
+                .header("x-api-key", apiKey)
+                .timeout(REQUEST_TIMEOUT)
+                .GET();
+
+        // Ask the server to only send the body if it has changed
+        if (cached != null && cached.canRevalidate()) {
+            if (cached.etag() != null) {
+                request.header("If-None-Match", cached.etag());
+            }
+            if (cached.lastModified() != null) {
+                request.header("If-Modified-Since", cached.lastModified());
+            }
+        }
+
+        return metrics.time("api_get", () -> sendAPIRequest(request.build(), response -> {
+
+            if (response.statusCode() == 304 && cached != null) {
+                response.body().close();
+                apicache.countRevalidated();
+                apicache.refresh(key, cached);
+                return cached.body();
+            }
+
+            JSONObject body = parseAPIResponse(response, fields);
+            apicache.countMiss();
+            apicache.put(key, body, response.headers().firstValue("ETag").orElse(null),
+                    response.headers().firstValue("Last-Modified").orElse(null));
+            return body;
+
+        }));
+    }
+
+    /**
+     * This function POSTs a JSON body to the CurseForge API and returns the
+     * response as a JSONObject. It is used for the bulk endpoints, which take a
+     * list of IDs in the request body. These responses are not cached as a
+     * whole; see getModsBulk and getFilesBulk.
+     *
+     * @param endpoint The endpoint of the API call, without the base URL.
+     * @param body     The JSON body to send.
+     * @return A JSONObject representing the API response.
+     * @throws Exception if an error occurs during the API call or if the response
+     *                   code is not 200.
+     */
+    public static JSONObject curseForgeAPIPost(String endpoint, JSONObject body) throws Exception {
+        return curseForgeAPIPost(endpoint, body, null);
+    }
+
+    /**
+     * Same as curseForgeAPIPost(endpoint, body), but only the given fields of
+     * the response are parsed and kept (see projection).
+     *
+     * @param fields the fields to keep, or null to keep the whole response
+     */
+    public static JSONObject curseForgeAPIPost(String endpoint, JSONObject body, projection.Fields fields)
+            throws Exception {
+
+        if (apicache.offline) {
+            throw new IOException(endpoint + " can not be called with --offline");
+        }
+
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("https://api.curseforge.com" + endpoint + params))
+                .uri(URI.create(apiBaseUrl + endpoint))
                 .header("x-api-key", apiKey)
-                .GET()
+                .header("Content-Type", "application/json")
+                .timeout(REQUEST_TIMEOUT)
+                .POST(HttpRequest.BodyPublishers.ofString(body.toJSONString()))
                 .build();
 
-        // Send the request and retrieve the response
-        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+        return metrics.time("api_post",
+                () -> sendAPIRequest(request, response -> parseAPIResponse(response, fields)));
+    }
+
+    /**
+     * Sends a request on the shared client through the scheduler, which paces
+     * it and retries it if CurseForge throttles it or it fails, and reads the
+     * response with handler. The body is streamed, not buffered.
+     */
+    private static <T> T sendAPIRequest(HttpRequest request, scheduler.Handler<T> handler) throws Exception {
+        return scheduler.send(httpClient, request, handler);
+    }
+
+    /**
+     * Parses the body of an API response as a JSON object straight from the
+     * network stream, keeping only the given fields. Whatever the parser does
+     * not need is read and discarded without being parsed, so that the
+     * connection can be reused.
+     *
+     * Because the parser reads from the network, the time spent waiting for
+     * the body is recorded as api_body_read, and only the rest as json_parse.
+     *
+     * @param fields the fields to keep, or null to keep the whole response
+     */
+    private static JSONObject parseAPIResponse(HttpResponse<InputStream> response, projection.Fields fields)
+            throws Exception {
+
+        metrics.MeteredInputStream body = metrics.counting(response.body(), "api_bytes_received_total");
+        long start = System.nanoTime();
+
+        try (body) {
+
+            // Check if the response code is not 200 and throw an exception if it's not
+            if (response.statusCode() != 200) {
+                throw new RuntimeException("Unexpected response code: " + response.statusCode());
+            }
+
+            Reader reader = new InputStreamReader(body, StandardCharsets.UTF_8);
+            JSONObject jsonResponse = null;
 
-        // Check if the response code is not 200 and throw an exception if it's not
-        if (response.statusCode() != 200) {
-            throw new RuntimeException("Unexpected response code: " + response.statusCode());
+            // Try to parse the response body as a JSON object. A connection that
+            // drops while the body is read is passed on, so the request is retried.
+            try {
+                if (fields == null) {
+                    jsonResponse = (JSONObject) new JSONParser().parse(reader);
+                } else {
+                    jsonResponse = projection.parse(reader, fields);
+                }
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+
+            body.transferTo(OutputStream.nullOutputStream());
+
+            // Return the JSON object
+            return jsonResponse;
+
+        } finally {
+            metrics.record("api_body_read", body.readNanos());
+            metrics.record("json_parse", System.nanoTime() - start - body.readNanos());
         }
+    }
 
-        // Get the response body as a string
-        String responseBody = response.body();
+    /**
+     * Fetches the CurseForge mod objects for many mods at once using the bulk
+     * /v1/mods endpoint, splitting the IDs into chunks of BULK_CHUNK_SIZE.
+     *
+     * @param modIDs the curseforge ids of the mods to fetch
+     * @return the mod objects, keyed by mod ID. IDs that CurseForge does not
+     *         know about are left out.
+     */
+    public static Map<String, JSONObject> getModsBulk(List<String> modIDs) throws Exception {
+        return getModsBulk(modIDs, false);
+    }
 
-        // Create a new JSONParser
-        JSONParser parser = new JSONParser();
-        JSONObject jsonResponse = null;
+    /**
+     * Same as getModsBulk(modIDs), but with fresh set every mod is requested
+     * rather than taken from the API cache, so that its dateModified is
+     * current. An update check needs that to tell which mods changed since
+     * they were last checked. A bulk request can not be revalidated, so this
+     * is the only way to be sure. --offline still answers from the cache.
+     */
+    public static Map<String, JSONObject> getModsBulk(List<String> modIDs, boolean fresh) throws Exception {
 
-        // Try to parse the response body as a JSON object
-        try {
-            jsonResponse = (JSONObject) parser.parse(responseBody);
-        } catch (Exception e) {
-            e.printStackTrace();
+        Map<String, JSONObject> mods = new HashMap<>();
+
+        // Take whatever the API cache has, and only request the rest
+        List<String> uncached = new ArrayList<>();
+        for (String modID : modIDs) {
+            JSONObject mod = fresh && !apicache.offline ? null : cachedItem("/v1/mods/" + modID, MOD_PROJECTION);
+            if (mod != null) {
+                mods.put(modID, mod);
+            } else {
+                uncached.add(modID);
+            }
         }
 
-        // Return the JSON object
-        return jsonResponse;
+        for (int from = 0; from < uncached.size(); from += BULK_CHUNK_SIZE) {
+
+            JSONArray ids = new JSONArray();
+            for (String modID : uncached.subList(from, Math.min(from + BULK_CHUNK_SIZE, uncached.size()))) {
+                ids.add(Long.parseLong(modID));
+            }
+
+            JSONObject body = new JSONObject();
+            body.put("modIds", ids);
+
+            JSONArray data = (JSONArray) curseForgeAPIPost("/v1/mods", body, MOD_PROJECTION).get("data");
+            for (Object entry : data) {
+                JSONObject mod = (JSONObject) entry;
+                mods.put(String.valueOf(mod.get("id")), mod);
+                cacheItem("/v1/mods/" + mod.get("id"), MOD_PROJECTION, mod);
+            }
+
+        }
+
+        return mods;
     }
 
     /**
-     * Function to download a file from a given URL and save it to a specified
-     * location
+     * Fetches many CurseForge file objects at once using the bulk
+     * /v1/mods/files endpoint, splitting the IDs into chunks of BULK_CHUNK_SIZE.
      *
-     * @param urlStr the URL of the file to be downloaded
-     * @param file   the location to save the downloaded file
-     * @throws IOException
+     * @param fileIDs the ids of the files to fetch
+     * @return the file objects, keyed by file ID
      */
-    public static void downloadFile(String urlStr, String file) throws IOException {
+    public static Map<Long, JSONObject> getFilesBulk(List<Long> fileIDs) throws Exception {
 
-        // Create a URL object from the given URL string
-        URL url = new URL(urlStr);
+        Map<Long, JSONObject> files = new HashMap<>();
 
-        // Open an InputStream to read data from the URL
-        InputStream is = url.openStream();
+        // Take whatever the API cache has, and only request the rest
+        List<Long> uncached = new ArrayList<>();
+        for (Long fileID : fileIDs) {
+            JSONObject file = cachedItem("/v1/mods/files/" + fileID, FILES_PROJECTION);
+            if (file != null) {
+                files.put(fileID, file);
+            } else {
+                uncached.add(fileID);
+            }
+        }
 
-        // Create a FileOutputStream to save the file to the specified location
-        OutputStream os = new FileOutputStream(file);
+        for (int from = 0; from < uncached.size(); from += BULK_CHUNK_SIZE) {
 
-        // Create a byte array to store read data
-        byte[] b = new byte[2048];
-        int length;
+            JSONArray ids = new JSONArray();
+            ids.addAll(uncached.subList(from, Math.min(from + BULK_CHUNK_SIZE, uncached.size())));
+
+            JSONObject body = new JSONObject();
+            body.put("fileIds", ids);
+
+            JSONArray data = (JSONArray) curseForgeAPIPost("/v1/mods/files", body, FILES_PROJECTION).get("data");
+            for (Object entry : data) {
+                JSONObject file = (JSONObject) entry;
+                files.put((Long) file.get("id"), file);
+                cacheItem("/v1/mods/files/" + file.get("id"), FILES_PROJECTION, file);
+            }
 
-        // Read data from the InputStream and write it to the OutputStream
-        // Repeat until all data has been read
-        while ((length = is.read(b)) != -1) {
-            os.write(b, 0, length);
         }
 
-        // Close the InputStream and OutputStream
-        is.close();
-        os.close();
+        return files;
     }
 
-    public static void saveUpdateInfo(String modID, String fileName, String downloadLink, String newVersion,
-            long fileID) {
+    /**
+     * Looks up one mod or file object in the API cache, stored in the same
+     * {"data": ...} shape the single-item endpoints return.
+     *
+     * @param fields the projection of the bulk request the object came from
+     * @return the object if the cache has a usable copy, otherwise null
+     * @throws IOException if running offline and the object is not cached
+     */
+    private static JSONObject cachedItem(String path, projection.Fields fields) throws IOException {
 
-        JSONParser parser = new JSONParser();
+        apicache.Key key = new apicache.Key(apiBaseUrl, path, fields);
+        apicache.Entry cached = apicache.get(key);
+        if (cached != null && (apicache.offline || cached.isFresh(key))) {
+            apicache.countHit();
+            return (JSONObject) cached.body().get("data");
+        }
+        if (apicache.offline) {
+            throw new IOException(path + " is not in the API cache, and --offline was given");
+        }
 
-        try {
+        apicache.countMiss();
+        return null;
 
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
-            JSONArray modsArray = (JSONArray) jsonData.get("mods");
+    }
 
-            for (int i = 0; i < modsArray.size(); i++) {
+    private static void cacheItem(String path, projection.Fields fields, JSONObject item) {
 
-                JSONObject mod = (JSONObject) modsArray.get(i);
-                String currModID = (String) mod.get("modID");
+        JSONObject body = new JSONObject();
+        body.put("data", item);
+        apicache.put(new apicache.Key(apiBaseUrl, path, fields), body, null, null);
 
-                if (currModID.equals(modID)) {
+    }
 
-                    // Create a new JSON object for the update info
-                    JSONObject updateInfo = new JSONObject();
-                    updateInfo.put("newFileName", fileName);
-                    updateInfo.put("newFileID", fileID);
-                    updateInfo.put("newDownloadLink", downloadLink);
-                    updateInfo.put("newVersion", newVersion);
+    /**
+     * Finds the newest file of each mod for a game version.
+     *
+     * The newest file ID is read from the latestFilesIndexes of the mod objects
+     * (which come from one bulk call), and the file objects are then fetched in
+     * bulk. Mods whose index has no entry for the version fall back to a
+     * concurrent per-mod /v1/mods/{id}/files lookup.
+     *
+     * @param modInfos    the mod objects from getModsBulk, keyed by mod ID
+     * @param gameVersion the minecraft version to find files for
+     * @return for each mod ID, the newest file object (or null if there is no
+     *         file for the version), or the error that occurred looking it up
+     */
+    public static Map<String, tasks.Result<JSONObject>> getLatestFiles(Map<String, JSONObject> modInfos,
+            String gameVersion) throws Exception {
+        return getLatestFiles(modInfos, gameVersion, false);
+    }
 
-                    // Add new update info object to mod info
-                    mod.put("update", updateInfo);
+    /**
+     * Same as getLatestFiles(modInfos, gameVersion), but with fresh set the
+     * per-mod file listings are revalidated even when the API cache has a
+     * fresh copy, since the mods were looked up because they changed. File
+     * objects never change, so the bulk lookup of those is cached either way.
+     */
+    public static Map<String, tasks.Result<JSONObject>> getLatestFiles(Map<String, JSONObject> modInfos,
+            String gameVersion, boolean fresh) throws Exception {
 
-                    // Write the updated JSON object back to the file
-                    FileWriter file = new FileWriter("mcmodmanager.json");
-                    file.write(jsonData.toJSONString());
-                    file.close();
+        Map<String, Long> newestFileIDs = new HashMap<>();
+        List<String> unindexed = new ArrayList<>();
 
-                    return;
+        for (Map.Entry<String, JSONObject> entry : modInfos.entrySet()) {
 
+            long newestFileID = -1;
+            JSONArray indexes = (JSONArray) entry.getValue().get("latestFilesIndexes");
+            if (indexes != null) {
+                for (Object index : indexes) {
+                    JSONObject fileIndex = (JSONObject) index;
+                    if (gameVersion.equals(fileIndex.get("gameVersion"))) {
+                        newestFileID = Math.max(newestFileID, (long) fileIndex.get("fileId"));
+                    }
                 }
+            }
 
+            if (newestFileID == -1) {
+                unindexed.add(entry.getKey());
+            } else {
+                newestFileIDs.put(entry.getKey(), newestFileID);
             }
 
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
+        Map<String, tasks.Result<JSONObject>> latest = new HashMap<>();
+
+        // Resolve every indexed file in a few bulk requests
+        Map<Long, JSONObject> files = getFilesBulk(new ArrayList<>(newestFileIDs.values()));
+        for (Map.Entry<String, Long> entry : newestFileIDs.entrySet()) {
+            latest.put(entry.getKey(), new tasks.Result<>(files.get(entry.getValue()), null, 0));
+        }
+
+        // Anything the index did not cover is looked up one mod at a time
+        List<tasks.Result<JSONObject>> lookups = tasks.runAll(unindexed, maxConcurrency, modID -> {
+            JSONObject modFiles = curseForgeAPICall("/v1/mods/" + modID + "/files",
+                    "?gameVersion=" + gameVersion + "&pageSize=1", NEWEST_FILE_PROJECTION, fresh);
+            JSONArray data = (JSONArray) modFiles.get("data");
+            if (data == null || data.isEmpty()) {
+                return null;
+            }
+            return (JSONObject) data.get(0);
+        });
+        for (int i = 0; i < unindexed.size(); i++) {
+            latest.put(unindexed.get(i), lookups.get(i));
+        }
+
+        return latest;
+    }
+
+    /**
+     * Function to download a file from a given URL and save it to a specified
+     * location
+     *
+     * The file is streamed to disk as "<file>.part" and only renamed to file
+     * once it is complete and its SHA-1 matches. If the connection drops, the
+     * download resumes where it left off, both right away and on later runs.
+     * See download for details.
+     *
+     * @param urlStr       the URL of the file to be downloaded
+     * @param file         the location to save the downloaded file
+     * @param expectedSha1 the hex SHA-1 the file must have, or null if unknown
+     * @return the hex SHA-1 of the downloaded file
+     * @throws IOException if the download fails or the file is damaged
+     */
+    public static String downloadFile(String urlStr, String file, String expectedSha1) throws IOException {
+        return metrics.time("download",
+                () -> download.toFile(httpClient, urlStr, Paths.get(file), DOWNLOAD_TIMEOUT, expectedSha1));
+    }
+
+    /**
+     * Puts a mod file in place, taking it from the shared jar cache when it is
+     * there and downloading it (and adding it to the cache) when it is not.
+     *
+     * @param urlStr the URL to download the file from on a cache miss
+     * @param fileID the CurseForge ID of the file
+     * @param file   the location to save the file
+     * @param sha1   the hex SHA-1 the file must have, or null if unknown
+     * @throws IOException if the file is not cached and the download fails
+     */
+    public static void installFile(String urlStr, long fileID, String file, String sha1) throws IOException {
+
+        if (jarcache.fetch(fileID, Paths.get(file), sha1)) {
+            return;
+        }
+
+        String downloadedSha1 = downloadFile(urlStr, file, sha1);
+        jarcache.store(fileID, Paths.get(file), downloadedSha1);
+
+    }
+
+    /**
+     * @param file a CurseForge file object
+     * @return the file's SHA-1 hash from its "hashes" array, or null if it has
+     *         none
+     */
+    public static String fileSha1(JSONObject file) {
+
+        JSONArray hashes = (JSONArray) file.get("hashes");
+        if (hashes == null) {
+            return null;
+        }
+
+        // CurseForge marks SHA-1 hashes with algo 1 (and MD5 hashes with algo 2)
+        for (Object hash : hashes) {
+            JSONObject entry = (JSONObject) hash;
+            if (Long.valueOf(1).equals(entry.get("algo"))) {
+                return (String) entry.get("value");
+            }
+        }
+        return null;
+
+    }
+
+    public static void saveUpdateInfo(String modID, String fileName, String downloadLink, String newVersion,
+            long fileID, String sha1, Long fileLength) {
+        saveUpdateInfo(cfg, modID, fileName, downloadLink, newVersion, fileID, sha1, fileLength);
+    }
+
+    public static void saveUpdateInfo(config target, String modID, String fileName, String downloadLink,
+            String newVersion, long fileID, String sha1, Long fileLength) {
+
+        // Add new update info object to mod info. It is written to disk when the
+        // config is flushed at the end of the run.
+        metrics.time("save_update_info",
+                () -> target.setUpdate(modID, fileName, fileID, downloadLink, newVersion, sha1, fileLength));
+
     }
 
     /**
      * checkUpdates() function checks for updates of all mods in mcmodmanager.json
      *
+     * All tracked mods are resolved with a handful of bulk API requests. Mods
+     * that cannot be resolved that way are looked up individually, with at most
+     * maxConcurrency requests in flight. Results are reported and saved in the
+     * same order as the mods appear in the config file.
+     *
+     * The check is incremental: every mod's dateModified is saved when it is
+     * checked, and a mod whose dateModified has not moved since it was last
+     * checked on the same version is not looked up again. Only the bulk mods
+     * request, which is needed to see dateModified, is made for those mods,
+     * and it always goes to CurseForge rather than the API cache.
+     * --full looks up every mod.
+     *
+     * @param desiredVersion the minecraft version to check for updates on
+     * @param maxConcurrency the maximum number of API calls in flight at once
      * @throws Exception if the mcmodmanager.json file is not found or data is
      *                   corrupted
      */
-    public static void checkUpdates(String desiredVersion) {
+    public static void checkUpdates(String desiredVersion, int maxConcurrency) throws Exception {
 
-        JSONParser parser = new JSONParser();
+        // Get the mods from the config
+        List<config.Mod> mods = new ArrayList<>(cfg.mods());
 
-        try {
+        List<String> modIDs = new ArrayList<>();
+        for (config.Mod mod : mods) {
+            modIDs.add(mod.modID());
+        }
 
-            // Parse mcmodmanager.json file and get the "mods" array + server version
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
-            JSONArray modsArray = (JSONArray) jsonData.get("mods");
-            String serverVersion = (String) jsonData.get("serverVersion");
+        // Get the latest version of every mod that has changed from CurseForge API
+        long passStart = System.nanoTime();
+        requestLatencies.clear();
+        Map<String, JSONObject> modInfos = getModsBulk(modIDs, true);
+        Map<String, JSONObject> changed = new HashMap<>();
+        for (config.Mod mod : mods) {
+            if (!unchanged(mod, modInfos.get(mod.modID()), desiredVersion)) {
+                changed.put(mod.modID(), modInfos.get(mod.modID()));
+            }
+        }
+        changed.values().removeIf(modInfo -> modInfo == null);
+        Map<String, tasks.Result<JSONObject>> latestFiles = getLatestFiles(changed, desiredVersion, true);
+        long passNanos = System.nanoTime() - passStart;
 
-            if (serverVersion.equals(desiredVersion)) {
+        reportUpdates(cfg, modInfos, latestFiles, desiredVersion, System.out);
 
-                for (int i = 0; i < modsArray.size(); i++) {
+        printTimings(mods.size(), passNanos, maxConcurrency);
+        int skipped = modInfos.size() - changed.size();
+        if (skipped > 0) {
+            System.out.println(skipped + " mods have not changed since they were last checked and were not "
+                    + "looked up again (use --full to look them up anyway)");
+        }
 
-                    // Get the mod information from the config file (name, modID, fileID)
-                    JSONObject mod = (JSONObject) modsArray.get(i);
-                    String name = (String) mod.get("name");
-                    String modID = (String) mod.get("modID");
-                    long fileID = (long) mod.get("fileID");
+    }
 
-                    // Get the latest version of the mod from CurseForge API
-                    JSONObject getModFiles = curseForgeAPICall("/v1/mods/" + modID + "/files",
-                            "?gameVersion=" + serverVersion);
-                    JSONObject pagination = (JSONObject) getModFiles.get("pagination");
+    /**
+     * @return true if a mod does not need to be looked up: it was last checked
+     *         on version, CurseForge has not modified it since, and --full was
+     *         not given
+     */
+    public static boolean unchanged(config.Mod mod, JSONObject modInfo, String version) {
+        return !fullCheck && modInfo != null && mod.unchangedSince(version, (String) modInfo.get("dateModified"));
+    }
 
-                    // If there are no results in response JSON, we know we cannot update
-                    if ((long) pagination.get("resultCount") == 0) {
-                        System.out.println("There are no versions of " + name + " for " + serverVersion);
-                        continue;
-                    }
+    /**
+     * Compares the mods of a config with the newest files found for them,
+     * reports each mod, and saves update info for every mod that can be
+     * updated. Every mod that was looked up is recorded as checked.
+     *
+     * @param target         the config whose mods to compare
+     * @param modInfos       the mod objects from getModsBulk, keyed by mod ID
+     * @param latestFiles    the newest file of each mod, from getLatestFiles.
+     *                       Mods that are unchanged since their last check
+     *                       may be left out.
+     * @param desiredVersion the minecraft version the files are for
+     * @param out            where to report each mod
+     * @return how many mods can be updated
+     */
+    public static int reportUpdates(config target, Map<String, JSONObject> modInfos,
+            Map<String, tasks.Result<JSONObject>> latestFiles, String desiredVersion, PrintStream out) {
+
+        boolean sameVersion = target.serverVersion().equals(desiredVersion);
+        int updates = 0;
 
-                    // Get the ID of the newest file
-                    JSONArray dataArray = (JSONArray) getModFiles.get("data");
-                    JSONObject firstMod = (JSONObject) dataArray.get(0);
-                    long newfileID = (long) firstMod.get("id");
+        for (config.Mod mod : new ArrayList<>(target.mods())) {
 
-                    // Compare file IDs to see if a newer file is present
-                    if (newfileID > fileID) {
+            // Get the mod information from the config file (name, modID, fileID)
+            String name = mod.name();
+            String modID = mod.modID();
+            long fileID = mod.fileID();
 
-                        System.out.println(name + " - Updates available");
+            JSONObject modInfo = modInfos.get(modID);
+            tasks.Result<JSONObject> result = latestFiles.get(modID);
+            if (result == null && unchanged(mod, modInfo, desiredVersion)) {
+                out.println(name + " - No changes since the last check"
+                        + (mod.update() != null ? ", update still available" : ""));
+                continue;
+            }
+            if (result == null) {
+                out.println(name + " - Could not be found on CurseForge");
+                continue;
+            }
+            if (result.error() != null) {
+                out.println(name + " - Could not check for updates: " + result.error().getMessage());
+                continue;
+            }
+
+            // The mod was looked up, so it does not need to be until it changes
+            target.setChecked(modID, desiredVersion, (String) modInfo.get("dateModified"));
 
-                        // Get rest of new file info
-                        String newFileName = (String) firstMod.get("fileName");
-                        String newDownloadLink = (String) firstMod.get("downloadUrl");
+            // If there is no file for the version, we know we cannot update
+            JSONObject firstMod = result.value();
+            if (firstMod == null) {
+                out.println("There are no versions of " + name + " for " + desiredVersion);
+                continue;
+            }
 
-                        // Save update info
-                        saveUpdateInfo(modID, newFileName, newDownloadLink, serverVersion, newfileID);
+            // Get the info of the newest file
+            long newfileID = (long) firstMod.get("id");
+            String newFileName = (String) firstMod.get("fileName");
+            String newDownloadLink = (String) firstMod.get("downloadUrl");
 
-                    } else {
-                        System.out.println(name + " - No updates available");
-                    }
+            if (sameVersion) {
 
+                // Compare file IDs to see if a newer file is present
+                if (newfileID <= fileID) {
+                    out.println(name + " - No updates available");
+                    continue;
                 }
+                out.println(name + " - Updates available");
 
             } else {
 
-                for (int i = 0; i < modsArray.size(); i++) {
+                // If there were results, then we know we can update
+                out.println(name + " is ready to update to " + desiredVersion);
 
-                    // Get the mod information from the config file (name, modID, fileID)
-                    JSONObject mod = (JSONObject) modsArray.get(i);
-                    String name = (String) mod.get("name");
-                    String modID = (String) mod.get("modID");
+            }
 
-                    // Get the latest version of the mod from CurseForge API
-                    JSONObject getModFiles = curseForgeAPICall("/v1/mods/" + modID + "/files",
-                            "?gameVersion=" + desiredVersion);
-                    JSONObject pagination = (JSONObject) getModFiles.get("pagination");
+            // Save update info
+            saveUpdateInfo(target, modID, newFileName, newDownloadLink, desiredVersion, newfileID,
+                    fileSha1(firstMod), (Long) firstMod.get("fileLength"));
+            updates++;
 
-                    // If there are no results in response JSON, we know we cannot update
-                    if ((long) pagination.get("resultCount") == 0) {
-                        System.out.println("There are no versions of " + name + " for " + desiredVersion);
-                        continue;
-                    }
-
-                    // If there were results, then we know we can update
-                    System.out.println(name + " is ready to update to " + desiredVersion);
+        }
 
-                    // Get new file info
-                    JSONArray dataArray = (JSONArray) getModFiles.get("data");
-                    JSONObject firstMod = (JSONObject) dataArray.get(0);
-                    long newfileID = (long) firstMod.get("id");
-                    String newFileName = (String) firstMod.get("fileName");
-                    String newDownloadLink = (String) firstMod.get("downloadUrl");
+        return updates;
 
-                    // Save update info
-                    saveUpdateInfo(modID, newFileName, newDownloadLink, desiredVersion, newfileID);
+    }
 
-                }
+    /**
+     * Prints the wall-clock time of an update check along with the latency of
+     * the API requests it made, so that runs can be compared.
+     */
+    private static void printTimings(int modCount, long passNanos, int maxConcurrency) {
 
+        long[] latencies;
+        synchronized (requestLatencies) {
+            latencies = new long[requestLatencies.size()];
+            for (int i = 0; i < latencies.length; i++) {
+                latencies[i] = requestLatencies.get(i);
             }
+        }
+
+        System.out.printf("Checked %d mods in %d ms using %d API requests (concurrency %d)%n", modCount,
+                passNanos / 1_000_000, latencies.length, maxConcurrency);
+        System.out.println(apicache.summary());
+        System.out.println(scheduler.summary());
+
+        if (latencies.length == 0) {
+            return;
+        }
+        Arrays.sort(latencies);
+
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+
+        System.out.printf("Request latency: avg %d ms, p50 %d ms, p95 %d ms, max %d ms%n",
+                total / latencies.length / 1_000_000,
+                latencies[(latencies.length - 1) / 2] / 1_000_000,
+                latencies[(int) Math.ceil(latencies.length * 0.95) - 1] / 1_000_000,
+                latencies[latencies.length - 1] / 1_000_000);
 
+    }
+
+    /**
+     * updateMods() downloads every update that checkUpdates has saved, with at
+     * most maxConcurrency downloads running at once.
+     *
+     * The live mods folder is not touched while the files are downloaded.
+     * Each file is downloaded into a staged copy of the folder and checked to
+     * be a jar. Once every download has finished, the files that did not
+     * change are hardlinked into the staged folder, the mods' update info
+     * becomes their current file info, and the staged folder is swapped in
+     * with two renames. The old folder is kept for --rollback (see staging).
+     * Mods that failed keep their old file and their update info, so that the
+     * next run can retry them.
+     *
+     * @param maxConcurrency the maximum number of downloads running at once
+     */
+    public static void updateMods(int maxConcurrency) {
+
+        try {
+            updateMods(cfg, modsDir(), maxConcurrency, System.out);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -325,69 +944,254 @@ class ModManager {
     }
 
     /**
-     * Method to add a new entry in the "mods" array of the JSON file
-     * 'mcmodmanager.json'.
-     * 
-     * @param modID the curseforge id of the mod to add.
-     * 
-     * @throws Exception if there is any problem with the file reading or parsing.
+     * Same as updateMods(maxConcurrency), for the given config and mods folder.
+     *
+     * @param out where to report each mod
+     * @return how many mods were updated
+     * @throws Exception if the update could not be carried out, as opposed to
+     *                   single mods failing to download, which are reported
      */
-    public static void addMod(String modID) {
+    public static int updateMods(config target, Path modsDir, int maxConcurrency, PrintStream out)
+            throws Exception {
 
-        // Initialize JSON parser to parse JSON file
-        JSONParser parser = new JSONParser();
+        int updated = 0;
 
-        try {
+        // Find every mod that has a saved update
+        List<config.Mod> pending = new ArrayList<>();
+        for (config.Mod mod : target.mods()) {
+            if (mod.update() != null) {
+                pending.add(mod);
+            }
+        }
 
-            // Read JSON file and parse its contents into a JSONObject
-            JSONObject jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+        if (pending.isEmpty()) {
+            out.println("There are no updates to install. Check for updates with -c first.");
+            return 0;
+        }
+
+        // Download all of the new files into the next generation of the mods
+        // folder, leaving the live one alone
+        Path staged = staging.prepare(modsDir);
+        long start = System.nanoTime();
+        List<tasks.Result<File>> results = tasks.runAll(pending, maxConcurrency, mod -> {
+
+            JSONObject update = mod.update();
+            File download = staged.resolve((String) update.get("newFileName")).toFile();
+
+            try {
+                installFile((String) update.get("newDownloadLink"), (long) update.get("newFileID"),
+                        download.getPath(), (String) update.get("newSha1"));
+                verifyJar(download);
+            } catch (Exception e) {
+                download.delete();
+                throw e;
+            }
 
-            // Get the 'mods' array and 'serverVersion' from the JSON object
-            JSONArray modsArray = (JSONArray) jsonData.get("mods");
-            String serverVersion = (String) jsonData.get("serverVersion");
+            return download;
 
-            // Get mod info from curseforge
-            JSONObject modInfo = (JSONObject) curseForgeAPICall("/v1/mods/" + modID, "").get("data");
-            String modName = (String) modInfo.get("name");
+        });
+        long elapsed = System.nanoTime() - start;
 
-            // Get most recent file for current server version of this mod
-            JSONObject modFiles = (JSONObject) curseForgeAPICall("/v1/mods/" + modID + "/files",
-                    "?gameVersion=" + serverVersion);
-            JSONObject resultInfo = (JSONObject) modFiles.get("pagination");
+        // Promote the updates that were downloaded
+        String previousConfig = target.toJSONString();
+        Set<String> replaced = new HashSet<>();
+        long bytes = 0;
+        for (int i = 0; i < pending.size(); i++) {
 
-            // If no mods are found for the current server version, notify user and exit
-            if ((long) resultInfo.get("resultCount") == 0) {
-                System.out.println("A version of " + modName + " could not be found for Minecraft " + serverVersion);
-                return;
+            config.Mod mod = pending.get(i);
+            tasks.Result<File> result = results.get(i);
+
+            if (result.error() != null) {
+                out.println(mod.name() + " - Update failed: " + result.error().getMessage());
+                continue;
             }
 
-            // Now that we know there is at least one released file for this mod on this
-            // version, we get its info
-            JSONArray fileArray = (JSONArray) modFiles.get("data");
-            JSONObject mostRecentVersion = (JSONObject) fileArray.get(0);
-            long fileID = (long) mostRecentVersion.get("id");
-            String fileName = (String) mostRecentVersion.get("fileName");
-            String downloadLink = (String) mostRecentVersion.get("downloadUrl");
+            String newFileName = (String) mod.update().get("newFileName");
+            bytes += result.value().length();
+            replaced.add(mod.fileName());
+
+            target.promoteUpdate(mod.modID());
+            updated++;
+            out.println(mod.name() + " - Updated to " + newFileName);
 
-            // Create a new JSON object for the new mod
-            JSONObject newMod = new JSONObject();
-            newMod.put("modID", modID);
-            newMod.put("name", modName);
-            newMod.put("currentVersion", serverVersion);
-            newMod.put("fileName", fileName);
-            newMod.put("fileID", fileID);
-            newMod.put("downloadLink", downloadLink);
+        }
 
-            // Add the new mod object to the 'mods' array
-            modsArray.add(newMod);
+        double seconds = elapsed / 1e9;
+        double megabytes = bytes / (1024.0 * 1024.0);
+        out.printf("Updated %d of %d mods: %.1f MB in %.1f s (%.1f MB/s, %d workers)%n", updated,
+                pending.size(), megabytes, seconds, seconds > 0 ? megabytes / seconds : 0, maxConcurrency);
 
-            // Write the updated JSON object back to the file
-            FileWriter file = new FileWriter("mcmodmanager.json");
-            file.write(jsonData.toJSONString());
-            file.close();
+        // Nothing to swap in. The staged folder only holds unfinished
+        // downloads, which the next update resumes.
+        if (updated == 0) {
+            return 0;
+        }
 
-            // Download the file to the mods folder
-            downloadFile(downloadLink, "./mods/" + fileName);
+        // Complete the new generation with the files that did not change, mark
+        // it with the mod list that goes with it, and swap it in. The
+        // unfinished downloads of failed updates are kept out of it so that
+        // the next update resumes them.
+        staging.linkUnchanged(modsDir, staged, replaced);
+        staging.commit(modsDir, staged, target.toJSONString(), previousConfig);
+        long swapNanos = staging.swap(target, modsDir, staged);
+        out.printf("Swapped in the new mods folder in %.2f ms. The old one is kept for --rollback.%n",
+                swapNanos / 1e6);
+
+        return updated;
+
+    }
+
+    /**
+     * Checks that a downloaded file looks like an intact jar: it must not be
+     * empty and must start with the zip local file header.
+     *
+     * @param file the downloaded file
+     * @throws IOException if the file is not a jar
+     */
+    public static void verifyJar(File file) throws IOException {
+
+        byte[] header = new byte[4];
+        int read;
+        try (InputStream is = new FileInputStream(file)) {
+            read = is.readNBytes(header, 0, header.length);
+        }
+
+        if (read < header.length || header[0] != 'P' || header[1] != 'K' || header[2] != 3 || header[3] != 4) {
+            throw new IOException(file.getName() + " is not a valid jar file");
+        }
+
+    }
+
+    /**
+     * Method to add new entries in the "mods" array of the JSON file
+     * 'mcmodmanager.json', together with every mod they require.
+     *
+     * Required dependencies (relationType 3 in a file's dependencies) are
+     * resolved breadth first: each level of the dependency graph is looked up
+     * with bulk API requests, and the dependencies of its files become the
+     * next level. Mods that are already in the mod list or have already been
+     * visited are skipped, which also ends any dependency cycles. Once the
+     * whole closure is known, it is added to the mod list and downloaded as
+     * one parallel batch.
+     *
+     * @param modIDs the curseforge ids of the mods to add.
+     * @param dryRun if true, only list what would be installed
+     */
+    public static void addMods(List<String> modIDs, boolean dryRun) {
+
+        try {
+
+            String serverVersion = cfg.serverVersion();
+
+            // Skip any mods that are already in the mod list
+            List<String> level = new ArrayList<>();
+            for (String modID : modIDs) {
+                if (cfg.mod(modID) != null || level.contains(modID)) {
+                    System.out.println("Mod " + modID + " is already in the mod list");
+                } else {
+                    level.add(modID);
+                }
+            }
+
+            // Every mod seen so far, mapped to the name of the mod that first
+            // required it (null for mods that were asked for)
+            Map<String, String> requiredBy = new LinkedHashMap<>();
+            for (String modID : level) {
+                requiredBy.put(modID, null);
+            }
+
+            List<config.Mod> closure = new ArrayList<>();
+            while (!level.isEmpty()) {
+
+                // Get mod info and the most recent file for the current server version
+                // of every mod in this level from curseforge
+                Map<String, JSONObject> modInfos = getModsBulk(level);
+                Map<String, tasks.Result<JSONObject>> latestFiles = getLatestFiles(modInfos, serverVersion);
+
+                List<String> nextLevel = new ArrayList<>();
+                for (String modID : level) {
+
+                    String parent = requiredBy.get(modID);
+                    String reason = parent == null ? "" : " (required by " + parent + ")";
+
+                    JSONObject modInfo = modInfos.get(modID);
+                    if (modInfo == null) {
+                        System.out.println("Mod " + modID + reason + " could not be found on CurseForge");
+                        continue;
+                    }
+                    String modName = (String) modInfo.get("name");
+
+                    tasks.Result<JSONObject> result = latestFiles.get(modID);
+                    if (result.error() != null) {
+                        System.out.println("Could not look up the files of " + modName + reason + ": "
+                                + result.error().getMessage());
+                        continue;
+                    }
+
+                    // If no mods are found for the current server version, notify user and skip it
+                    JSONObject mostRecentVersion = result.value();
+                    if (mostRecentVersion == null) {
+                        System.out.println("A version of " + modName + reason + " could not be found for Minecraft "
+                                + serverVersion);
+                        continue;
+                    }
+
+                    // Now that we know there is at least one released file for this mod on this
+                    // version, we get its info
+                    long fileID = (long) mostRecentVersion.get("id");
+                    String fileName = (String) mostRecentVersion.get("fileName");
+                    String downloadLink = (String) mostRecentVersion.get("downloadUrl");
+
+                    closure.add(new config.Mod(modID, modName, serverVersion, fileName, fileID, downloadLink,
+                            fileSha1(mostRecentVersion), (Long) mostRecentVersion.get("fileLength")));
+
+                    // Queue the required dependencies that are not installed or queued yet
+                    for (String dependency : requiredDependencies(mostRecentVersion)) {
+                        if (cfg.mod(dependency) == null && !requiredBy.containsKey(dependency)) {
+                            requiredBy.put(dependency, modName);
+                            nextLevel.add(dependency);
+                        }
+                    }
+
+                }
+
+                level = nextLevel;
+
+            }
+
+            if (dryRun) {
+                System.out.println(closure.isEmpty() ? "Nothing would be installed"
+                        : "Would install " + closure.size() + " mods:");
+                for (config.Mod mod : closure) {
+                    String parent = requiredBy.get(mod.modID());
+                    System.out.println("    " + mod.name() + " (" + mod.modID() + ") " + mod.fileName()
+                            + (parent == null ? "" : ", required by " + parent));
+                }
+                return;
+            }
+
+            // Add the whole closure to the mod list, then download the files to the
+            // mods folder all at once
+            for (config.Mod newMod : closure) {
+                cfg.addMod(newMod);
+            }
+            List<tasks.Result<Void>> installs = tasks.runAll(closure, maxConcurrency, newMod -> {
+                installFile(newMod.downloadLink(), newMod.fileID(), modsDir().resolve(newMod.fileName()).toString(),
+                        newMod.sha1());
+                return null;
+            });
+
+            for (int i = 0; i < closure.size(); i++) {
+                config.Mod newMod = closure.get(i);
+                String parent = requiredBy.get(newMod.modID());
+                if (installs.get(i).error() != null) {
+                    System.out.println(newMod.name() + " could not be downloaded: " + installs.get(i).error().getMessage());
+                } else if (parent != null) {
+                    System.out.println(newMod.name() + " has been added (required by " + parent + ")");
+                } else {
+                    System.out.println(newMod.name() + " has been added");
+                }
+            }
 
         } catch (Exception e) {
 
@@ -399,66 +1203,316 @@ class ModManager {
 
     }
 
-    public static void removeMod(String modID) {
+    /**
+     * @return the IDs of the mods a file requires (relationType 3 in its
+     *         dependencies)
+     */
+    public static List<String> requiredDependencies(JSONObject file) {
+
+        List<String> required = new ArrayList<>();
+        JSONArray dependencies = (JSONArray) file.get("dependencies");
+        if (dependencies != null) {
+            for (Object dependency : dependencies) {
+                JSONObject entry = (JSONObject) dependency;
+                if (Long.valueOf(3).equals(entry.get("relationType"))) {
+                    required.add(String.valueOf(entry.get("modId")));
+                }
+            }
+        }
+        return required;
 
-        // Initialize JSON parser to parse JSON file
-        JSONParser parser = new JSONParser();
+    }
 
-        JSONObject jsonData = null;
+    /**
+     * Adds the jars already in the mods folder to the mod list without
+     * downloading them again. Every jar that is not tracked yet is
+     * fingerprinted, and all fingerprints are looked up on CurseForge in one
+     * request.
+     */
+    public static void scanMods() {
 
         try {
 
-            // Read JSON file and parse its contents into a JSONObject
-            jsonData = (JSONObject) parser.parse(new FileReader("mcmodmanager.json"));
+            String serverVersion = cfg.serverVersion();
+
+            // Find the jars in the mods folder that are not in the mod list yet
+            List<String> trackedFiles = new ArrayList<>();
+            for (config.Mod mod : cfg.mods()) {
+                trackedFiles.add(mod.fileName());
+            }
+            List<Path> jars = new ArrayList<>();
+            File[] modFiles = modsDir().toFile().listFiles((dir, name) -> name.endsWith(".jar"));
+            if (modFiles != null) {
+                Arrays.sort(modFiles);
+                for (File modFile : modFiles) {
+                    if (!trackedFiles.contains(modFile.getName())) {
+                        jars.add(modFile.toPath());
+                    }
+                }
+            }
+
+            if (jars.isEmpty()) {
+                System.out.println("There are no untracked jars in the mods folder");
+                return;
+            }
+
+            // Fingerprint every jar in parallel
+            long start = System.nanoTime();
+            List<tasks.Result<Long>> fingerprints = fingerprint.scan(jars, maxConcurrency);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long totalBytes = 0;
+            for (Path jar : jars) {
+                totalBytes += Files.size(jar);
+            }
+            System.out.printf("Fingerprinted %d jars (%.1f MB) in %.0f ms (%.1f MB/s, %d workers)%n", jars.size(),
+                    totalBytes / 1048576.0, seconds * 1000, totalBytes / 1048576.0 / seconds, maxConcurrency);
+
+            // Look up all of the fingerprints at once
+            JSONArray fingerprintArray = new JSONArray();
+            for (tasks.Result<Long> result : fingerprints) {
+                if (result.value() != null) {
+                    fingerprintArray.add(result.value());
+                }
+            }
+            JSONObject body = new JSONObject();
+            body.put("fingerprints", fingerprintArray);
+            JSONObject response = (JSONObject) curseForgeAPIPost("/v1/fingerprints", body, FINGERPRINT_PROJECTION)
+                    .get("data");
+
+            Map<Long, JSONObject> matches = new HashMap<>();
+            List<String> matchedModIDs = new ArrayList<>();
+            for (Object match : (JSONArray) response.get("exactMatches")) {
+                JSONObject file = (JSONObject) ((JSONObject) match).get("file");
+                matches.put((Long) file.get("fileFingerprint"), file);
+                String modID = String.valueOf(file.get("modId"));
+                if (!matchedModIDs.contains(modID)) {
+                    matchedModIDs.add(modID);
+                }
+            }
+
+            // The mod names are not part of the fingerprint matches
+            Map<String, JSONObject> modInfos = getModsBulk(matchedModIDs);
+
+            for (int i = 0; i < jars.size(); i++) {
+
+                String jarName = jars.get(i).getFileName().toString();
+                tasks.Result<Long> result = fingerprints.get(i);
+                if (result.error() != null) {
+                    System.out.println(jarName + " could not be read: " + result.error().getMessage());
+                    continue;
+                }
+
+                JSONObject file = matches.get(result.value());
+                if (file == null) {
+                    System.out.println(jarName + " could not be found on CurseForge");
+                    continue;
+                }
+
+                String modID = String.valueOf(file.get("modId"));
+                JSONObject modInfo = modInfos.get(modID);
+                String modName = modInfo == null ? jarName : (String) modInfo.get("name");
+                if (cfg.mod(modID) != null) {
+                    System.out.println(jarName + " is " + modName + ", which is already in the mod list");
+                    continue;
+                }
+
+                // Use the server version if the file supports it, otherwise the first
+                // Minecraft version it lists
+                String version = serverVersion;
+                JSONArray gameVersions = (JSONArray) file.get("gameVersions");
+                if (gameVersions != null && !gameVersions.contains(serverVersion)) {
+                    for (Object gameVersion : gameVersions) {
+                        if (Character.isDigit(((String) gameVersion).charAt(0))) {
+                            version = (String) gameVersion;
+                            break;
+                        }
+                    }
+                }
+
+                // The jar stays where it is, under its current name
+                cfg.addMod(new config.Mod(modID, modName, version, jarName, (long) file.get("id"),
+                        (String) file.get("downloadUrl"), fileSha1(file), (Long) file.get("fileLength")));
+                System.out.println(modName + " has been imported from " + jarName);
+
+            }
 
         } catch (Exception e) {
             e.printStackTrace();
+        }
+
+    }
+
+    public static void removeMod(String modID) {
+
+        // Remove the mod from the config file
+        config.Mod removed = cfg.removeMod(modID);
+
+        // If no mod has a matching ID
+        if (removed == null) {
+            System.out.println("The specified mod could not be found");
+            return;
+        }
+
+        // Save the mod list before deleting the file, so that the mod list never
+        // lists a file that is not there
+        try {
+            cfg.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
             return;
         }
 
-        // Get the 'mods' array and 'serverVersion' from the JSON object
-        JSONArray modsArray = (JSONArray) jsonData.get("mods");
+        // Delete its file from the mods folder
+        File modFile = modsDir().resolve(removed.fileName()).toFile();
+        modFile.delete();
 
-        // For each mod...
-        for (int i = 0; i < modsArray.size(); i++) {
+        // Update user
+        System.out.println("The mod has successfully been removed");
 
-            // Grab its mod ID
-            JSONObject currentMod = (JSONObject) modsArray.get(i);
-            String currentModID = (String) currentMod.get("modID");
+    }
 
-            // And if it matches the one we are looking for...
-            if (currentModID.equals(modID)) {
+    /**
+     * Reads the optional flags that can follow any command, such as the number
+     * of concurrent jobs.
+     *
+     * @param args the command line arguments
+     */
+    public static void parseOptions(String[] args) {
 
-                // Get the file name and delete the file from the mods folder
-                String fileName = (String) currentMod.get("fileName");
-                File modFile = new File("./mods/" + fileName);
-                modFile.delete();
+        for (int i = 1; i < args.length; i++) {
 
-                // remove it from config file
-                modsArray.remove(i);
+            switch (args[i]) {
 
-                // Write the updated JSON object back to the file
-                FileWriter file;
-                try {
+                case "-j", "--jobs":
+                    maxConcurrency = Integer.parseInt(args[++i]);
+                    break;
 
-                    file = new FileWriter("mcmodmanager.json");
-                    file.write(jsonData.toJSONString());
-                    file.close();
+                case "--api-url":
+                    apiBaseUrl = args[++i];
+                    break;
 
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                case "--rate":
+                    scheduler.rate = Double.parseDouble(args[++i]);
+                    scheduler.burst = Math.max(1, scheduler.rate);
+                    break;
 
-                // Update user
-                System.out.println("The mod has successfully been removed");
-                return;
+                case "--attempts":
+                    scheduler.maxAttempts = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+
+                case "--metrics":
+                    metrics.file = Paths.get(args[++i]);
+                    break;
+
+                case "--full":
+                    fullCheck = true;
+                    break;
+
+                case "--dir":
+                    serverDir = Paths.get(args[++i]);
+                    break;
+
+                case "--servers":
+                    fleet.setServers(args[++i]);
+                    break;
+
+                case "--cache-dir":
+                    jarcache.dir = Paths.get(args[++i]);
+                    break;
+
+                case "--cache-size":
+                    jarcache.maxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+                    break;
+
+                case "--no-cache":
+                    jarcache.dir = null;
+                    break;
+
+                case "--verify":
+                    verifyFiles = true;
+                    break;
+
+                case "--interval":
+                    daemon.interval = Duration.ofMinutes(Long.parseLong(args[++i]));
+                    break;
+
+                case "--window":
+                    daemon.setWindow(args[++i]);
+                    break;
+
+                case "--auto-update":
+                    daemon.autoUpdate = true;
+                    break;
+
+                case "--control-port":
+                    daemon.controlPort = Integer.parseInt(args[++i]);
+                    break;
+
+                case "--dry-run":
+                    dryRun = true;
+                    break;
+
+                case "--offline":
+                    apicache.offline = true;
+                    break;
+
+                case "--no-api-cache":
+                    apicache.dir = null;
+                    break;
+
+                case "--on-missing":
+                    setOnMissing(args[++i]);
+                    break;
+
+                default:
+                    if (args[i].startsWith("--on-missing=")) {
+                        setOnMissing(args[i].substring("--on-missing=".length()));
+                    } else if (args[i].startsWith("--")) {
+                        // A mistyped option must not be ignored: a misspelled
+                        // --dry-run would otherwise install for real
+                        System.out.println("Unknown option " + args[i] + "\n");
+                        printUsage(1);
+                    }
+                    break;
 
             }
 
         }
 
-        // If all mods were searched without a match
-        System.out.println("The specified mod could not be found");
+    }
+
+    /**
+     * Sets the --on-missing policy, and exits if it is not one of the known
+     * ones rather than falling back to the default.
+     */
+    private static void setOnMissing(String policy) {
+
+        if (!List.of("redownload", "remove", "fail").contains(policy)) {
+            System.out.println("Unknown --on-missing policy '" + policy
+                    + "'. It must be 'redownload', 'remove' or 'fail'.");
+            System.exit(1);
+        }
+        onMissing = policy;
+
+    }
+
+    /**
+     * Collects the mod IDs given to -a (or the versions given to --plan).
+     * Several can be passed, either as separate arguments or separated by
+     * commas, up until the first option flag.
+     */
+    public static List<String> modIDArgs(String[] args) {
+
+        List<String> modIDs = new ArrayList<>();
+        for (int i = 1; i < args.length && !args[i].startsWith("-"); i++) {
+            for (String modID : args[i].split(",")) {
+                if (!modID.isBlank()) {
+                    modIDs.add(modID.trim());
+                }
+            }
+        }
+        return modIDs;
 
     }
 
@@ -466,6 +1520,8 @@ class ModManager {
 
         if (args.length > 0) {
 
+            parseOptions(args);
+
             switch (args[0]) {
 
                 case "-h", "--help":
@@ -473,50 +1529,132 @@ class ModManager {
                     break;
 
                 case "-c", "--check-updates":
-                    init.configFile();
-                    apiKey = init.apiKey();
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
                     init.modFolder();
-                    init.fileCheck();
+                    init.fileCheck(cfg);
 
-                    checkUpdates(args[1]);
+                    try {
+                        checkUpdates(args[1], maxConcurrency);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
                     break;
 
                 case "-a", "--add-mod":
-                    init.configFile();
-                    apiKey = init.apiKey();
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
                     init.modFolder();
-                    init.fileCheck();
+                    init.fileCheck(cfg);
 
-                    addMod(args[1]);
+                    addMods(modIDArgs(args), dryRun);
                     break;
 
                 case "-r", "--remove-mod":
-                    init.configFile();
-                    apiKey = init.apiKey();
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
                     init.modFolder();
-                    init.fileCheck();
+                    init.fileCheck(cfg);
 
                     removeMod(args[1]);
                     break;
 
                 case "-k", "--api-key":
-                    init.configFile();
+                    cfg = init.configFile();
 
                     setAPIKey(args[1]);
                     break;
 
                 case "-s", "--set-version":
-                    init.configFile();
+                    cfg = init.configFile();
 
                     setServerVersion(args[1]);
                     break;
 
                 case "-u", "--update":
-                    init.configFile();
-                    apiKey = init.apiKey();
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
+                    init.modFolder();
+                    init.fileCheck(cfg);
+
+                    updateMods(maxConcurrency);
+                    break;
+
+                case "--scan":
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
+                    init.modFolder();
+                    init.fileCheck(cfg);
+
+                    scanMods();
+                    break;
+
+                case "--daemon":
+                    cfg = init.configFile();
+                    apiKey = init.apiKey(cfg);
+                    init.modFolder();
+                    init.fileCheck(cfg);
+
+                    try {
+                        daemon.run(args.length > 1 && !args[1].startsWith("-") ? args[1] : null);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    break;
+
+                case "--storage":
+                    cfg = init.configFile();
+
+                    setStorageMode(args[1]);
+                    break;
+
+                case "--import":
+                    cfg = init.configFile();
+
+                    importConfig(args[1]);
+                    break;
+
+                case "--export":
+                    cfg = init.configFile();
+
+                    exportConfig(args[1]);
+                    break;
+
+                case "--plan": {
+                    // The mod list is only read, so it is not kept in cfg to be saved
+                    config planned = init.configFile();
+                    apiKey = init.apiKey(planned);
+
+                    planner.plan(planned, modIDArgs(args));
+                    break;
+                }
+
+                case "--rollback":
+                    cfg = init.configFile();
                     init.modFolder();
-                    init.fileCheck();
 
+                    try {
+                        staging.rollback(cfg, modsDir());
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    break;
+
+                case "--fleet-check":
+                    fleet.check(args.length > 1 && !args[1].startsWith("-") ? args[1] : null);
+                    break;
+
+                case "--fleet-update":
+                    fleet.update();
+                    break;
+
+                case "--cache-stats":
+                    try {
+                        jarcache.printStats();
+                        apicache.printStats();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                     break;
 
                 default:
@@ -524,6 +1662,28 @@ class ModManager {
 
             }
 
+            // Show how often requests had to be retried, unless -c has already
+            if (scheduler.retries() > 0 && !List.of("-c", "--check-updates").contains(args[0])) {
+                System.out.println(scheduler.summary());
+            }
+
+            // Record how much the caches were used
+            jarcache.saveStats();
+            apicache.saveStats();
+
+            // Write any changes made during the run back to the config file
+            if (cfg != null) {
+                try {
+                    cfg.flush();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                metrics.gauge("mods_tracked", cfg.mods().size());
+            }
+
+            // Export the timings and counters of the run, if --metrics was given
+            metrics.save();
+
         }
 
     }
@@ -0,0 +1,325 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.simple.JSONObject;
+
+/**
+ * Timing spans and counters for the hot paths, exported as JSON or in the
+ * Prometheus text format.
+ *
+ * A span times one step, such as an API call or a download:
+ *
+ * String sha1 = metrics.time("download", () -> download.toFile(...));
+ *
+ * Every span name gets a count, a total, a maximum and a histogram of its
+ * durations. Counters add up things like API responses per status, bytes
+ * transferred and config writes, optionally split by one label. Gauges hold
+ * the last value set.
+ *
+ * With --metrics FILE, everything is written to FILE when the run ends (and
+ * after every check in daemon mode): as JSON if FILE ends in .json, otherwise
+ * in the Prometheus text format, which node_exporter's textfile collector
+ * can pick up. The daemon also serves the Prometheus format on GET /metrics
+ * of its control endpoint.
+ */
+public class metrics {
+
+    // Where to write the metrics at the end of the run, or null
+    public static Path file = null;
+
+    // Every metric name is prefixed with this in the Prometheus format
+    private static final String PREFIX = "mcmodmanager_";
+
+    // Upper bounds of the span histogram buckets, in seconds
+    private static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30 };
+
+    private static final Map<String, Timer> spans = new ConcurrentHashMap<>();
+    private static final Map<String, Map<String, LongAdder>> counters = new ConcurrentHashMap<>();
+    private static final Map<String, String> counterLabels = new ConcurrentHashMap<>();
+    private static final Map<String, Double> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * A step that returns a value. It may throw the checked exceptions of the
+     * code it wraps, which time() passes on.
+     */
+    public interface Step<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * A step that returns nothing.
+     */
+    public interface Action<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * The recorded durations of one span name.
+     */
+    private static class Timer {
+
+        final LongAdder count = new LongAdder();
+        final LongAdder totalNanos = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+
+        void record(long nanos) {
+
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+
+            double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Runs a step and records how long it took under the given span name,
+     * whether it returns or throws.
+     *
+     * @return what the step returned
+     */
+    public static <T, E extends Exception> T time(String name, Step<T, E> step) throws E {
+
+        long start = System.nanoTime();
+        try {
+            return step.run();
+        } finally {
+            record(name, System.nanoTime() - start);
+        }
+
+    }
+
+    /**
+     * Same as time(name, step), for a step that returns nothing.
+     */
+    public static <E extends Exception> void time(String name, Action<E> action) throws E {
+
+        long start = System.nanoTime();
+        try {
+            action.run();
+        } finally {
+            record(name, System.nanoTime() - start);
+        }
+
+    }
+
+    /**
+     * Records a duration that was measured elsewhere under a span name.
+     */
+    public static void record(String name, long nanos) {
+        spans.computeIfAbsent(name, key -> new Timer()).record(nanos);
+    }
+
+    /**
+     * Adds n to a counter.
+     */
+    public static void count(String name, long n) {
+        count(name, null, null, n);
+    }
+
+    /**
+     * Adds n to one value of a labelled counter, such as the 200 of
+     * api_responses_total{status="200"}.
+     */
+    public static void count(String name, String label, String value, long n) {
+
+        if (label != null) {
+            counterLabels.putIfAbsent(name, label);
+        }
+        counters.computeIfAbsent(name, key -> new ConcurrentHashMap<>())
+                .computeIfAbsent(value == null ? "" : value, key -> new LongAdder()).add(n);
+
+    }
+
+    /**
+     * Sets a gauge.
+     */
+    public static void gauge(String name, double value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * An input stream that counts the bytes read from it, and keeps the time
+     * spent waiting in its read methods, so that the time spent on what is
+     * read can be told apart from the time spent receiving it.
+     */
+    public static class MeteredInputStream extends FilterInputStream {
+
+        private final String counter;
+        private long readNanos = 0;
+
+        private MeteredInputStream(InputStream in, String counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+
+            long start = System.nanoTime();
+            int b = super.read();
+            readNanos += System.nanoTime() - start;
+            if (b >= 0) {
+                count(counter, 1);
+            }
+            return b;
+
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, length);
+            readNanos += System.nanoTime() - start;
+            if (read > 0) {
+                count(counter, read);
+            }
+            return read;
+
+        }
+
+        /**
+         * @return the time spent in the read methods so far, in nanoseconds
+         */
+        public long readNanos() {
+            return readNanos;
+        }
+
+    }
+
+    /**
+     * @return in, counting every byte read from it into the given counter
+     */
+    public static MeteredInputStream counting(InputStream in, String counter) {
+        return new MeteredInputStream(in, counter);
+    }
+
+    /**
+     * Writes the metrics to file, if --metrics was given. Failing to write
+     * them is reported but is not an error.
+     */
+    public static void save() {
+
+        if (file == null) {
+            return;
+        }
+
+        gauge("last_run_timestamp_seconds", System.currentTimeMillis() / 1000.0);
+        try {
+            storage.writeAtomically(file, file.toString().endsWith(".json") ? toJSON().toJSONString() : toPrometheus());
+        } catch (IOException e) {
+            System.out.println("Could not write the metrics to " + file + ": " + e.getMessage());
+        }
+
+    }
+
+    /**
+     * @return every span, counter and gauge as a JSON object. Durations are in
+     *         milliseconds.
+     */
+    public static JSONObject toJSON() {
+
+        JSONObject spanJson = new JSONObject();
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(spans).entrySet()) {
+            Timer timer = entry.getValue();
+            JSONObject span = new JSONObject();
+            span.put("count", timer.count.sum());
+            span.put("totalMillis", timer.totalNanos.sum() / 1e6);
+            span.put("maxMillis", timer.maxNanos.get() / 1e6);
+            spanJson.put(entry.getKey(), span);
+        }
+
+        JSONObject counterJson = new JSONObject();
+        for (Map.Entry<String, Map<String, LongAdder>> entry : new TreeMap<>(counters).entrySet()) {
+            if (counterLabels.containsKey(entry.getKey())) {
+                JSONObject values = new JSONObject();
+                entry.getValue().forEach((value, adder) -> values.put(value, adder.sum()));
+                counterJson.put(entry.getKey(), values);
+            } else {
+                counterJson.put(entry.getKey(), entry.getValue().get("").sum());
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("spans", spanJson);
+        json.put("counters", counterJson);
+        json.put("gauges", new JSONObject(new TreeMap<>(gauges)));
+        return json;
+
+    }
+
+    /**
+     * @return every span, counter and gauge in the Prometheus text format.
+     *         Spans become one histogram, labelled by span name, in seconds.
+     */
+    public static String toPrometheus() {
+
+        StringBuilder out = new StringBuilder();
+
+        String histogram = PREFIX + "span_seconds";
+        out.append("# HELP ").append(histogram).append(" Time spent in each instrumented step\n");
+        out.append("# TYPE ").append(histogram).append(" histogram\n");
+        for (Map.Entry<String, Timer> entry : new TreeMap<>(spans).entrySet()) {
+
+            Timer timer = entry.getValue();
+            String span = "span=\"" + entry.getKey() + "\"";
+
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += timer.buckets.get(i);
+                out.append(histogram).append("_bucket{").append(span).append(",le=\"").append(BUCKETS[i])
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(histogram).append("_bucket{").append(span).append(",le=\"+Inf\"} ")
+                    .append(timer.count.sum()).append('\n');
+            out.append(histogram).append("_sum{").append(span).append("} ").append(timer.totalNanos.sum() / 1e9)
+                    .append('\n');
+            out.append(histogram).append("_count{").append(span).append("} ").append(timer.count.sum())
+                    .append('\n');
+
+        }
+
+        for (Map.Entry<String, Map<String, LongAdder>> entry : new TreeMap<>(counters).entrySet()) {
+
+            String name = PREFIX + entry.getKey();
+            String label = counterLabels.get(entry.getKey());
+            out.append("# TYPE ").append(name).append(" counter\n");
+            for (Map.Entry<String, LongAdder> value : new TreeMap<>(entry.getValue()).entrySet()) {
+                out.append(name);
+                if (label != null) {
+                    out.append('{').append(label).append("=\"").append(value.getKey()).append("\"}");
+                }
+                out.append(' ').append(value.getValue().sum()).append('\n');
+            }
+
+        }
+
+        for (Map.Entry<String, Double> entry : new TreeMap<>(gauges).entrySet()) {
+            String name = PREFIX + entry.getKey();
+            out.append("# TYPE ").append(name).append(" gauge\n");
+            out.append(name).append(' ').append(entry.getValue()).append('\n');
+        }
+
+        return out.toString();
+
+    }
+
+}
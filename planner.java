@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Upgrade planner (--plan): shows, for several candidate game versions at
+ * once, which mods already have a file for each version and which are
+ * missing.
+ *
+ * Every mod is looked up once. The mod objects from the bulk mods endpoint
+ * carry a latestFilesIndexes entry for every game version the mod has files
+ * for, so most mods are planned from that one bulk pass. Only mods whose
+ * index does not mention some candidate version have their file list
+ * fetched, once, and indexed by game version here.
+ *
+ * The plan is only printed. The mod list is not changed, so a plan can be
+ * made at any time without losing the updates saved by -c.
+ */
+public class planner {
+
+    // The files of a mod are listed this many at a time
+    private static final int PAGE_SIZE = 50;
+
+    // Mod names are cut to this length in the matrix
+    private static final int NAME_WIDTH = 40;
+
+    private static final projection.Fields FILE_LIST_PROJECTION = projection.Fields.of("data.*", "id",
+            "gameVersions");
+
+    /**
+     * Prints the compatibility matrix of every mod in cfg across versions.
+     *
+     * @param cfg      the config whose mods to plan for; it is not changed
+     * @param versions the candidate game versions
+     */
+    public static void plan(config cfg, List<String> versions) {
+
+        if (versions.isEmpty()) {
+            System.out.println("Give the versions to plan for, such as --plan 1.19.4,1.20.1");
+            return;
+        }
+
+        metrics.time("plan", () -> planAll(cfg, versions));
+
+    }
+
+    private static void planAll(config cfg, List<String> versions) {
+
+        try {
+
+            List<config.Mod> mods = new ArrayList<>(cfg.mods());
+            List<String> modIDs = new ArrayList<>();
+            for (config.Mod mod : mods) {
+                modIDs.add(mod.modID());
+            }
+
+            long start = System.nanoTime();
+            ModManager.requestLatencies.clear();
+
+            // The game versions each mod has files for, from the bulk index
+            Map<String, JSONObject> modInfos = ModManager.getModsBulk(modIDs);
+            Map<String, Map<String, Long>> available = new HashMap<>();
+            List<String> incomplete = new ArrayList<>();
+            for (String modID : modIDs) {
+
+                JSONObject modInfo = modInfos.get(modID);
+                if (modInfo == null) {
+                    continue;
+                }
+
+                Map<String, Long> files = new HashMap<>();
+                JSONArray indexes = (JSONArray) modInfo.get("latestFilesIndexes");
+                if (indexes != null) {
+                    for (Object index : indexes) {
+                        JSONObject fileIndex = (JSONObject) index;
+                        files.merge((String) fileIndex.get("gameVersion"), (Long) fileIndex.get("fileId"),
+                                Math::max);
+                    }
+                }
+                available.put(modID, files);
+
+                if (!files.keySet().containsAll(versions)) {
+                    incomplete.add(modID);
+                }
+
+            }
+
+            // The index only has the latest files, so make sure of the rest by
+            // listing their files
+            List<tasks.Result<Map<String, Long>>> listings = tasks.runAll(incomplete, ModManager.maxConcurrency,
+                    planner::filesByVersion);
+            for (int i = 0; i < incomplete.size(); i++) {
+                if (listings.get(i).error() == null) {
+                    available.get(incomplete.get(i)).putAll(listings.get(i).value());
+                } else {
+                    System.out.println("Could not list the files of mod " + incomplete.get(i) + ": "
+                            + listings.get(i).error().getMessage());
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+
+            printMatrix(mods, versions, available);
+
+            System.out.printf("Planned %d mods for %d versions in %d ms using %d API requests (%d file lists)%n",
+                    mods.size(), versions.size(), elapsed / 1_000_000, ModManager.requestLatencies.size(),
+                    incomplete.size());
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    /**
+     * Lists every file of a mod, a page at a time.
+     *
+     * @return the newest file ID of the mod for each game version
+     */
+    private static Map<String, Long> filesByVersion(String modID) throws Exception {
+
+        Map<String, Long> newest = new HashMap<>();
+        for (int index = 0;; index += PAGE_SIZE) {
+
+            JSONArray data = (JSONArray) ModManager.curseForgeAPICall("/v1/mods/" + modID + "/files",
+                    "?index=" + index + "&pageSize=" + PAGE_SIZE, FILE_LIST_PROJECTION).get("data");
+            if (data == null) {
+                break;
+            }
+
+            for (Object entry : data) {
+                JSONObject file = (JSONObject) entry;
+                JSONArray gameVersions = (JSONArray) file.get("gameVersions");
+                if (gameVersions == null) {
+                    continue;
+                }
+                for (Object gameVersion : gameVersions) {
+                    newest.merge((String) gameVersion, (Long) file.get("id"), Math::max);
+                }
+            }
+
+            if (data.size() < PAGE_SIZE) {
+                break;
+            }
+
+        }
+        return newest;
+
+    }
+
+    private static void printMatrix(List<config.Mod> mods, List<String> versions,
+            Map<String, Map<String, Long>> available) {
+
+        // Header
+        StringBuilder line = new StringBuilder(String.format("%-" + NAME_WIDTH + "s", "Mod"));
+        for (String version : versions) {
+            line.append("  ").append(String.format("%-3s", version));
+        }
+        System.out.println(line);
+
+        Map<String, List<String>> missing = new HashMap<>();
+        for (String version : versions) {
+            missing.put(version, new ArrayList<>());
+        }
+
+        // One row per mod: "yes" if it has a file for the version, "-" if not
+        for (config.Mod mod : mods) {
+
+            String name = mod.name().length() > NAME_WIDTH ? mod.name().substring(0, NAME_WIDTH - 3) + "..."
+                    : mod.name();
+            line = new StringBuilder(String.format("%-" + NAME_WIDTH + "s", name));
+
+            Map<String, Long> files = available.get(mod.modID());
+            for (String version : versions) {
+                boolean ready = files != null && files.containsKey(version);
+                String cell = ready ? "yes" : "-";
+                line.append("  ").append(String.format("%-" + Math.max(3, version.length()) + "s", cell));
+                if (!ready) {
+                    missing.get(version).add(mod.name());
+                }
+            }
+            System.out.println(line.toString().stripTrailing());
+
+        }
+
+        // Summary per version, in the order given
+        System.out.println();
+        for (String version : versions) {
+            List<String> names = missing.get(version);
+            System.out.printf("%s: %d of %d mods ready%s%n", version, mods.size() - names.size(), mods.size(),
+                    names.isEmpty() ? "" : ", missing: " + String.join(", ", names));
+        }
+
+    }
+
+}
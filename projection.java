@@ -0,0 +1,470 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Streaming, projection-based parsing of JSON responses.
+ *
+ * CurseForge mod and file objects are large (screenshots, categories, every
+ * file's modules, sortable game versions and so on), but only a handful of
+ * their fields are ever used. Instead of building a json-simple tree of the
+ * whole response, the parser here reads the response straight from the
+ * stream and only builds the parts that a Fields projection asks for. Values
+ * that are not wanted are skipped character by character without creating
+ * any objects, which is where the savings come from: json-simple's own
+ * tokenizer allocates a String for every token, wanted or not.
+ *
+ * Once nothing more that the projection wants can follow, for example after
+ * the first element when only "data.0" is wanted, parsing stops and the rest
+ * of the response is not looked at.
+ *
+ * The result uses the same types as json-simple (JSONObject, JSONArray,
+ * String, Long, Double, Boolean and null), so it can be used anywhere a
+ * json-simple tree can.
+ */
+public class projection {
+
+    /**
+     * The set of fields to keep, as a tree of paths. A path is a list of object
+     * keys and array indexes separated by dots, where "*" matches every element
+     * of an array (or every key of an object). Everything below the end of a
+     * path is kept whole.
+     */
+    public static class Fields {
+
+        // Kept whole, including everything below
+        private static final Fields ALL = new Fields();
+        static {
+            ALL.keepAll = true;
+        }
+
+        private final Map<String, Fields> children = new HashMap<>();
+        private boolean keepAll = false;
+
+        // The prefix and fields this projection was made from, see toString
+        private String spec = "*";
+
+        // The highest array index that is asked for explicitly
+        private int maxIndex = -1;
+
+        /**
+         * @param prefix the path of the objects to project, such as "data.*"
+         * @param fields the fields of those objects to keep
+         */
+        public static Fields of(String prefix, String... fields) {
+
+            Fields root = new Fields();
+            for (String field : fields) {
+                root.add((prefix + "." + field).split("\\."), 0);
+            }
+            root.spec = prefix + "." + String.join(",", fields);
+            return root;
+
+        }
+
+        /**
+         * @return the prefix and fields this projection keeps, such as
+         *         "data.*.id,name". Two projections made from the same prefix and
+         *         fields have the same string, so it can be part of a cache key.
+         */
+        @Override
+        public String toString() {
+            return spec;
+        }
+
+        private void add(String[] path, int from) {
+
+            if (from == path.length) {
+                keepAll = true;
+                return;
+            }
+
+            String segment = path[from];
+            if (segment.chars().allMatch(Character::isDigit)) {
+                maxIndex = Math.max(maxIndex, Integer.parseInt(segment));
+            }
+            children.computeIfAbsent(segment, s -> new Fields()).add(path, from + 1);
+
+        }
+
+        /**
+         * @return the projection for the given key or array index, or null if
+         *         it is not wanted. The key is compared in place so that keys
+         *         that are not wanted never become Strings.
+         */
+        private Fields child(CharSequence key) {
+
+            if (keepAll) {
+                return ALL;
+            }
+            for (Map.Entry<String, Fields> entry : children.entrySet()) {
+                if (entry.getKey().contentEquals(key)) {
+                    return entry.getValue();
+                }
+            }
+            return children.get("*");
+
+        }
+
+        private boolean hasWildcard() {
+            return keepAll || children.containsKey("*");
+        }
+
+    }
+
+    /**
+     * Parses a JSON object, keeping only the given fields.
+     *
+     * @param reader the JSON to parse. It is not read any further than needed.
+     * @param fields the fields to keep
+     * @return the projected object
+     */
+    public static JSONObject parse(Reader reader, Fields fields) throws IOException, ParseException {
+
+        Parser parser = new Parser(reader);
+        parser.skipWhitespace();
+        if (parser.peek() != '{') {
+            throw parser.unexpected();
+        }
+
+        JSONObject result = new JSONObject();
+        parser.parseObject(fields, result, true);
+        return result;
+
+    }
+
+    private static class Parser {
+
+        private final Reader reader;
+        private final char[] buffer = new char[8192];
+        private int position = 0;
+        private int limit = 0;
+        private int consumed = 0;
+
+        // Reused for keys, so that keys that are not wanted cost nothing
+        private final StringBuilder key = new StringBuilder();
+
+        Parser(Reader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Parses the object at the current position into target.
+         *
+         * @param canStop true if nothing after this object is wanted, so parsing
+         *                may stop as soon as this object has everything it wants
+         * @return true if parsing stopped early
+         */
+        @SuppressWarnings("unchecked")
+        boolean parseObject(Fields fields, JSONObject target, boolean canStop) throws IOException, ParseException {
+
+            Set<String> pending = new HashSet<>(fields.children.keySet());
+            pending.remove("*");
+
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                next();
+                return false;
+            }
+
+            while (true) {
+
+                skipWhitespace();
+                readString(key);
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+
+                Fields child = fields.child(key);
+                if (child == null) {
+                    skipValue();
+                } else {
+
+                    String name = key.toString();
+                    pending.remove(name);
+                    boolean complete = !fields.hasWildcard() && pending.isEmpty();
+
+                    Object[] value = new Object[1];
+                    if (parseValue(child, value, canStop && complete)) {
+                        target.put(name, value[0]);
+                        return true;
+                    }
+                    target.put(name, value[0]);
+
+                    if (canStop && complete) {
+                        return true;
+                    }
+
+                }
+
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return false;
+                } else if (c != ',') {
+                    throw unexpected();
+                }
+
+            }
+
+        }
+
+        /**
+         * Parses the array at the current position into target.
+         *
+         * @return true if parsing stopped early
+         */
+        @SuppressWarnings("unchecked")
+        boolean parseArray(Fields fields, JSONArray target, boolean canStop) throws IOException, ParseException {
+
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                next();
+                return false;
+            }
+
+            for (int index = 0;; index++) {
+
+                skipWhitespace();
+
+                Fields child = fields.child(Integer.toString(index));
+                if (child == null) {
+                    skipValue();
+                } else {
+
+                    boolean complete = !fields.hasWildcard() && index >= fields.maxIndex;
+
+                    Object[] value = new Object[1];
+                    if (parseValue(child, value, canStop && complete)) {
+                        target.add(value[0]);
+                        return true;
+                    }
+                    target.add(value[0]);
+
+                    if (canStop && complete) {
+                        return true;
+                    }
+
+                }
+
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return false;
+                } else if (c != ',') {
+                    throw unexpected();
+                }
+
+            }
+
+        }
+
+        /**
+         * Parses the value at the current position into value[0].
+         *
+         * @return true if parsing stopped early
+         */
+        boolean parseValue(Fields fields, Object[] value, boolean canStop) throws IOException, ParseException {
+
+            char c = peek();
+            if (c == '{') {
+                JSONObject object = new JSONObject();
+                value[0] = object;
+                return parseObject(fields, object, canStop);
+            } else if (c == '[') {
+                JSONArray array = new JSONArray();
+                value[0] = array;
+                return parseArray(fields, array, canStop);
+            } else if (c == '"') {
+                StringBuilder string = new StringBuilder();
+                readString(string);
+                value[0] = string.toString();
+            } else {
+                value[0] = readLiteral();
+            }
+            return false;
+
+        }
+
+        /**
+         * Skips the value at the current position without building anything.
+         */
+        void skipValue() throws IOException, ParseException {
+
+            int depth = 0;
+            do {
+
+                char c = next();
+                switch (c) {
+
+                    case '{', '[':
+                        depth++;
+                        break;
+
+                    case '}', ']':
+                        depth--;
+                        break;
+
+                    case '"':
+                        // Skip to the closing quote, stepping over escaped characters
+                        for (char s = next(); s != '"'; s = next()) {
+                            if (s == '\\') {
+                                next();
+                            }
+                        }
+                        break;
+
+                    default:
+                        // A number or literal ends at the next delimiter, which is left
+                        // for the caller
+                        if (depth == 0) {
+                            while (!isDelimiter(peek())) {
+                                next();
+                            }
+                        }
+                        break;
+
+                }
+
+            } while (depth > 0);
+
+        }
+
+        void readString(StringBuilder target) throws IOException, ParseException {
+
+            target.setLength(0);
+            expect('"');
+
+            for (char c = next(); c != '"'; c = next()) {
+
+                if (c != '\\') {
+                    target.append(c);
+                    continue;
+                }
+
+                char escaped = next();
+                switch (escaped) {
+                    case 'b' -> target.append('\b');
+                    case 'f' -> target.append('\f');
+                    case 'n' -> target.append('\n');
+                    case 'r' -> target.append('\r');
+                    case 't' -> target.append('\t');
+                    case 'u' -> {
+                        int code = 0;
+                        for (int i = 0; i < 4; i++) {
+                            int digit = Character.digit(next(), 16);
+                            if (digit < 0) {
+                                throw unexpected();
+                            }
+                            code = code * 16 + digit;
+                        }
+                        target.append((char) code);
+                    }
+                    default -> target.append(escaped);
+                }
+
+            }
+
+        }
+
+        /**
+         * Reads a number, true, false or null, giving the same types as
+         * json-simple: Long for integers and Double for everything else.
+         */
+        Object readLiteral() throws IOException, ParseException {
+
+            StringBuilder literal = new StringBuilder();
+            while (!isDelimiter(peek())) {
+                literal.append(next());
+            }
+
+            String text = literal.toString();
+            switch (text) {
+                case "true":
+                    return Boolean.TRUE;
+                case "false":
+                    return Boolean.FALSE;
+                case "null":
+                    return null;
+                default:
+                    break;
+            }
+
+            try {
+                if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+                    return Long.valueOf(text);
+                }
+                return Double.valueOf(text);
+            } catch (NumberFormatException e) {
+                throw new ParseException(consumed, ParseException.ERROR_UNEXPECTED_TOKEN, text);
+            }
+
+        }
+
+        void skipWhitespace() throws IOException, ParseException {
+            while (Character.isWhitespace(peek())) {
+                next();
+            }
+        }
+
+        void expect(char expected) throws IOException, ParseException {
+            if (next() != expected) {
+                throw unexpected();
+            }
+        }
+
+        /**
+         * @return the next character without consuming it, or 0 at the end of
+         *         the input
+         */
+        char peek() throws IOException {
+
+            if (position == limit && !fill()) {
+                return 0;
+            }
+            return buffer[position];
+
+        }
+
+        char next() throws IOException, ParseException {
+
+            if (position == limit && !fill()) {
+                throw new ParseException(consumed, ParseException.ERROR_UNEXPECTED_EXCEPTION, "end of input");
+            }
+            consumed++;
+            return buffer[position++];
+
+        }
+
+        private boolean fill() throws IOException {
+
+            int read = reader.read(buffer);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+
+        }
+
+        private static boolean isDelimiter(char c) {
+            return c == ',' || c == '}' || c == ']' || c == 0 || Character.isWhitespace(c);
+        }
+
+        ParseException unexpected() throws IOException {
+            return new ParseException(consumed, ParseException.ERROR_UNEXPECTED_CHAR, peek());
+        }
+
+    }
+
+}
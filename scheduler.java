@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces, limits and retries the requests made to the CurseForge API.
+ *
+ * Every API request goes through send(), which
+ *
+ * - takes a token from a token bucket, so that no more than rate requests a
+ * second are started on average (with bursts of up to burst requests),
+ *
+ * - waits for a free slot under an adaptive concurrency limit. The limit
+ * starts at maxConcurrency (-j), is halved whenever CurseForge throttles us
+ * (429 or 503) and grows back by about one slot per limit's worth of
+ * successful responses, the same additive increase, multiplicative decrease
+ * scheme TCP uses,
+ *
+ * - retries 429s, 5xx responses and network errors (including a connection
+ * that drops while the body is being read) up to maxAttempts times. The
+ * wait before a retry grows exponentially with full jitter, so that many
+ * requests that failed together do not all retry together. A Retry-After
+ * header is honoured, and holds back every other request as well.
+ *
+ * How many responses came back with each status, and how many requests had
+ * to be retried, is counted for summary().
+ */
+public class scheduler {
+
+    // Requests started per second on average, and how many may start at once
+    // after a quiet period
+    public static double rate = 20;
+    public static double burst = 20;
+
+    // How many times one request is tried before giving up
+    public static int maxAttempts = 5;
+
+    // The first retry waits up to BASE_BACKOFF, doubling with every attempt up
+    // to MAX_BACKOFF
+    public static final Duration BASE_BACKOFF = Duration.ofMillis(500);
+    public static final Duration MAX_BACKOFF = Duration.ofSeconds(30);
+
+    // A Retry-After longer than this is not waited for; the request fails
+    public static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(2);
+
+    // The concurrency limit is halved at most this often, so that the 429s of
+    // requests that were already in flight count as a single signal
+    private static final long DECREASE_INTERVAL = Duration.ofSeconds(1).toNanos();
+
+    /**
+     * Reads a response. Any IOException it throws, such as a connection that
+     * drops halfway through the body, makes the request be retried.
+     */
+    public interface Handler<T> {
+        T handle(HttpResponse<InputStream> response) throws Exception;
+    }
+
+    // Token bucket state. tokens goes negative when requests have reserved
+    // tokens that are not there yet; each of them waits its turn.
+    private static double tokens = burst;
+    private static long lastRefill = System.nanoTime();
+
+    // No request is started before this time, set by Retry-After
+    private static long pausedUntil = 0;
+
+    // Adaptive concurrency limit, or -1 until the first request
+    private static double limit = -1;
+    private static double lowestLimit = -1;
+    private static int inFlight = 0;
+    private static long lastDecrease = 0;
+
+    // Responses per status code ("error" for network errors), and retries
+    private static final Map<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+    private static final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Sends a request and reads the response with handler, retrying throttled,
+     * failed and dropped requests.
+     *
+     * @return what handler returned for the first response that was not
+     *         retried. On the last attempt, the response is handed to handler
+     *         whatever its status.
+     * @throws IOException if the request failed with a network error on every
+     *                     attempt
+     */
+    public static <T> T send(HttpClient client, HttpRequest request, Handler<T> handler) throws Exception {
+
+        for (int attempt = 1;; attempt++) {
+
+            boolean lastAttempt = attempt >= maxAttempts;
+            Duration wait;
+
+            takeToken();
+            acquireSlot();
+            try {
+
+                long start = System.nanoTime();
+                HttpResponse<InputStream> response = client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+                ModManager.requestLatencies.add(System.nanoTime() - start);
+
+                int status = response.statusCode();
+                count(String.valueOf(status));
+
+                // Give up rather than wait for a Retry-After that is too long
+                Duration retryAfter = retryAfter(response);
+                boolean retry = !lastAttempt && isRetryable(status)
+                        && (retryAfter == null || retryAfter.compareTo(MAX_RETRY_AFTER) <= 0);
+
+                if (!retry) {
+                    T result = handler.handle(response);
+                    if (status < 500 && status != 429) {
+                        succeeded();
+                    }
+                    return result;
+                }
+
+                response.body().close();
+                if (status == 429 || status == 503) {
+                    throttled();
+                }
+                if (retryAfter != null) {
+                    pause(retryAfter);
+                }
+                wait = retryAfter != null ? retryAfter : backoff(attempt);
+
+            } catch (IOException e) {
+
+                count("error");
+                if (lastAttempt) {
+                    throw e;
+                }
+                wait = backoff(attempt);
+
+            } finally {
+                releaseSlot();
+            }
+
+            retries.incrementAndGet();
+            metrics.count("api_retries_total", 1);
+            Thread.sleep(wait.toMillis());
+
+        }
+
+    }
+
+    /**
+     * @return how many requests have been retried during this run
+     */
+    public static long retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return a one line summary of the responses received during this run and
+     *         how the scheduler reacted to them
+     */
+    public static String summary() {
+
+        Map<String, Long> counts = new TreeMap<>();
+        long total = 0;
+        for (Map.Entry<String, AtomicLong> entry : statuses.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+            total += entry.getValue().get();
+        }
+
+        synchronized (scheduler.class) {
+            return String.format("API responses: %d %s, %d retried, concurrency limit %d (lowest %d)", total,
+                    counts, retries.get(), (int) Math.max(limit, 0), (int) Math.max(lowestLimit, 0));
+        }
+
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * @return the exponential backoff before the given retry, with full jitter:
+     *         a random duration between zero and the exponential bound
+     */
+    static Duration backoff(int attempt) {
+
+        long bound = Math.min(MAX_BACKOFF.toMillis(), BASE_BACKOFF.toMillis() << Math.min(attempt - 1, 20));
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(bound + 1));
+
+    }
+
+    /**
+     * @return the wait a Retry-After header asks for, given either in seconds
+     *         or as an HTTP date, or null if there is none
+     */
+    static Duration retryAfter(HttpResponse<?> response) {
+
+        String value = response.headers().firstValue("Retry-After").orElse(null);
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so it should be a date
+        }
+        try {
+            Duration until = Duration.between(ZonedDateTime.now(),
+                    ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+            return until.isNegative() ? Duration.ZERO : until;
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+
+    }
+
+    private static void count(String status) {
+        statuses.computeIfAbsent(status, key -> new AtomicLong()).incrementAndGet();
+        metrics.count("api_responses_total", "status", status, 1);
+    }
+
+    /**
+     * Waits until a token is available and takes it.
+     */
+    private static void takeToken() throws InterruptedException {
+
+        long waitNanos;
+        synchronized (scheduler.class) {
+
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            tokens -= 1;
+
+            waitNanos = Math.max(tokens < 0 ? (long) (-tokens / rate * 1e9) : 0, pausedUntil - now);
+
+        }
+
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+
+    }
+
+    /**
+     * Holds back every request that has not started yet for the given time.
+     */
+    private static synchronized void pause(Duration duration) {
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + duration.toNanos());
+    }
+
+    /**
+     * Waits until fewer requests than the concurrency limit are in flight.
+     */
+    private static synchronized void acquireSlot() throws InterruptedException {
+
+        if (limit < 0) {
+            limit = Math.max(1, ModManager.maxConcurrency);
+            lowestLimit = limit;
+            metrics.gauge("api_concurrency_limit", limit);
+        }
+        while (inFlight >= (int) limit) {
+            scheduler.class.wait();
+        }
+        inFlight++;
+
+    }
+
+    private static synchronized void releaseSlot() {
+
+        inFlight--;
+        scheduler.class.notifyAll();
+
+    }
+
+    /**
+     * Additive increase: a full limit's worth of successful responses raises
+     * the limit by one, up to -j.
+     */
+    private static synchronized void succeeded() {
+
+        limit = Math.min(Math.max(1, ModManager.maxConcurrency), limit + 1 / limit);
+        metrics.gauge("api_concurrency_limit", limit);
+        scheduler.class.notifyAll();
+
+    }
+
+    /**
+     * Multiplicative decrease: halve the limit, at most once per
+     * DECREASE_INTERVAL.
+     */
+    private static synchronized void throttled() {
+
+        long now = System.nanoTime();
+        if (now - lastDecrease >= DECREASE_INTERVAL) {
+            limit = Math.max(1, limit / 2);
+            lowestLimit = Math.min(lowestLimit, limit);
+            metrics.gauge("api_concurrency_limit", limit);
+            lastDecrease = now;
+        }
+
+    }
+
+}
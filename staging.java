@@ -0,0 +1,364 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Staged generations of the mods folder.
+ *
+ * An update does not touch the live mods folder while it runs. The new files
+ * are downloaded into mods.staged, next to it, and every file that is not
+ * replaced is hardlinked in from the live folder (or copied, if hardlinks are
+ * not supported), so the staged folder is complete without taking up space
+ * for a second copy of the unchanged jars. Only then is the staged folder
+ * swapped in:
+ *
+ * mods -> mods.previous, mods.staged -> mods
+ *
+ * Both are renames within the server directory, so the server is only
+ * without a complete mods folder for the time between them. Java has no way
+ * to exchange two directories in a single rename.
+ *
+ * Once the staged folder is complete it is marked as such (see commit). The
+ * marker holds the mod list that goes with the staged folder and the one
+ * that goes with the folder it replaces, and both lists are only saved after
+ * the renames, from the marker, which is removed last. If the process dies
+ * anywhere in between, the next run finishes the renames and saves the lists
+ * from the marker (see recover), so the mods folder and the mod list always
+ * end up matching. An unmarked staged folder is unfinished and is thrown
+ * away.
+ *
+ * The replaced generation is kept as mods.previous, together with the mod
+ * list as it was before the update in mcmodmanager.previous.json, so that
+ * --rollback can swap both back. A rollback marks mods.previous the same way
+ * before it renames anything. Rolling back twice rolls forward again.
+ */
+public class staging {
+
+    // The mod list that goes with mods.previous
+    public static final String PREVIOUS_CONFIG = "mcmodmanager.previous.json";
+
+    // Marks a folder as ready to be swapped in, and holds the mod list that
+    // goes with it ("list") and the one that goes with the folder it replaces
+    // ("previous")
+    private static final String SWAP_MARKER = ".mcmodmanager-swap";
+
+    public static Path stagedDir(Path modsDir) {
+        return modsDir.resolveSibling(modsDir.getFileName() + ".staged");
+    }
+
+    public static Path previousDir(Path modsDir) {
+        return modsDir.resolveSibling(modsDir.getFileName() + ".previous");
+    }
+
+    private static Path rollbackDir(Path modsDir) {
+        return modsDir.resolveSibling(modsDir.getFileName() + ".rollback");
+    }
+
+    private static Path unfinishedDir(Path modsDir) {
+        return modsDir.resolveSibling(modsDir.getFileName() + ".unfinished");
+    }
+
+    private static Path previousConfig(Path modsDir) {
+        return modsDir.resolveSibling(PREVIOUS_CONFIG);
+    }
+
+    /**
+     * Creates an empty staged folder. Whatever an earlier update left behind
+     * is removed, except for its unfinished downloads, which are kept (or
+     * brought back from where commit put them) so that they resume.
+     *
+     * @return the staged folder
+     */
+    public static Path prepare(Path modsDir) throws IOException {
+
+        Path staged = stagedDir(modsDir);
+        if (Files.isDirectory(staged)) {
+            try (Stream<Path> entries = Files.list(staged)) {
+                for (Path entry : (Iterable<Path>) entries::iterator) {
+                    if (!isUnfinished(entry.getFileName().toString())) {
+                        deleteTree(entry);
+                    }
+                }
+            }
+        }
+        Files.createDirectories(staged);
+
+        Path unfinished = unfinishedDir(modsDir);
+        if (Files.isDirectory(unfinished)) {
+            moveUnfinished(unfinished, staged);
+            deleteTree(unfinished);
+        }
+        return staged;
+
+    }
+
+    /**
+     * Hardlinks every file of the live mods folder, including files in
+     * subfolders, into the staged folder, except for the files that are
+     * replaced, files the staged folder already has, and unfinished downloads.
+     *
+     * @param replaced the names of the files in the mods folder that the
+     *                 update replaces
+     */
+    public static void linkUnchanged(Path modsDir, Path staged, Set<String> replaced) throws IOException {
+
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(modsDir)) {
+            paths = walk.collect(Collectors.toList());
+        }
+
+        for (Path path : paths) {
+
+            Path relative = modsDir.relativize(path);
+            if (relative.toString().isEmpty()) {
+                continue;
+            }
+
+            String name = relative.getFileName().toString();
+            boolean topLevel = relative.getNameCount() == 1;
+            if (topLevel && (replaced.contains(name) || isUnfinished(name))) {
+                continue;
+            }
+
+            Path target = staged.resolve(relative);
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                Files.createDirectories(target);
+            } else if (Files.isSymbolicLink(path)) {
+                if (!Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+                    Files.createSymbolicLink(target, Files.readSymbolicLink(path));
+                }
+            } else if (!Files.exists(target)) {
+                try {
+                    Files.createLink(target, path);
+                } catch (IOException | UnsupportedOperationException e) {
+                    Files.copy(path, target, StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+
+        }
+
+    }
+
+    /**
+     * Marks a staged folder as complete and ready to be swapped in, and stores
+     * the mod list that goes with it, and the one that goes with the folder
+     * it replaces, inside it (see SWAP_MARKER).
+     *
+     * The unfinished downloads of updates that failed are moved out to
+     * mods.unfinished first, so that they are not swapped into the live
+     * folder, and the next update can still resume them (see prepare).
+     *
+     * @param newConfig      the mod list once the update is installed, in the
+     *                       mcmodmanager.json format
+     * @param previousConfig the mod list as it was before the update
+     */
+    public static void commit(Path modsDir, Path staged, String newConfig, String previousConfig)
+            throws IOException, ParseException {
+
+        Path unfinished = unfinishedDir(modsDir);
+        Files.createDirectories(unfinished);
+        moveUnfinished(staged, unfinished);
+        writeMarker(staged, newConfig, previousConfig);
+
+    }
+
+    /**
+     * Swaps a committed staged folder in as the live mods folder, keeps the
+     * old one for --rollback, and then saves the mod lists stored with the
+     * staged folder.
+     *
+     * @return how long the mods folder was not in place, in nanoseconds
+     */
+    public static long swap(config cfg, Path modsDir, Path staged) throws Exception {
+
+        Path previous = previousDir(modsDir);
+        deleteTree(previous);
+
+        long start = System.nanoTime();
+        Files.move(modsDir, previous, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(staged, modsDir, StandardCopyOption.ATOMIC_MOVE);
+        long nanos = System.nanoTime() - start;
+
+        finish(cfg, modsDir);
+        return nanos;
+
+    }
+
+    /**
+     * Swaps the previous generation of the mods folder back in, and restores
+     * the mod list that goes with it. The generation that is replaced becomes
+     * the previous one.
+     *
+     * This is done the same way as an update: the previous folder is marked
+     * with both mod lists before anything is renamed, so an interrupted
+     * rollback is finished by the next run.
+     */
+    public static void rollback(config cfg, Path modsDir) throws Exception {
+
+        Path previous = previousDir(modsDir);
+        Path previousConfig = previousConfig(modsDir);
+        if (!Files.isDirectory(previous) || !Files.exists(previousConfig)) {
+            System.out.println("There is no previous generation of the mods folder to roll back to.");
+            return;
+        }
+
+        writeMarker(previous, Files.readString(previousConfig, StandardCharsets.UTF_8), cfg.toJSONString());
+
+        Path aside = rollbackDir(modsDir);
+        deleteTree(aside);
+        long start = System.nanoTime();
+        Files.move(modsDir, aside, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(previous, modsDir, StandardCopyOption.ATOMIC_MOVE);
+        long nanos = System.nanoTime() - start;
+        Files.move(aside, previous, StandardCopyOption.ATOMIC_MOVE);
+
+        finish(cfg, modsDir);
+
+        System.out.printf("Rolled back to the previous mods folder (%d mods, swapped in %.2f ms). "
+                + "Run --rollback again to undo.%n", cfg.mods().size(), nanos / 1e6);
+
+    }
+
+    /**
+     * Finishes a swap or rollback that was interrupted after its folder was
+     * marked: the renames that had not happened yet are made, and the mod
+     * lists stored in the marker are saved. This has to run before the mod
+     * list is loaded, since it may replace it.
+     *
+     * @return true if something had to be finished
+     */
+    public static boolean recover(Path modsDir) throws Exception {
+
+        Path staged = stagedDir(modsDir);
+        Path previous = previousDir(modsDir);
+        Path aside = rollbackDir(modsDir);
+
+        if (Files.exists(modsDir.resolve(SWAP_MARKER))) {
+
+            // The marked folder is in place, but a rollback may not have moved
+            // the replaced folder on from aside, and the mod lists may not be
+            // saved yet
+            if (Files.isDirectory(aside) && !Files.exists(previous)) {
+                Files.move(aside, previous, StandardCopyOption.ATOMIC_MOVE);
+            }
+
+        } else if (Files.exists(staged.resolve(SWAP_MARKER))) {
+
+            // An update had committed its staged folder
+            if (Files.exists(modsDir)) {
+                deleteTree(previous);
+                Files.move(modsDir, previous, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(staged, modsDir, StandardCopyOption.ATOMIC_MOVE);
+
+        } else if (Files.exists(previous.resolve(SWAP_MARKER))) {
+
+            // A rollback had marked the previous folder
+            if (Files.exists(modsDir)) {
+                deleteTree(aside);
+                Files.move(modsDir, aside, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.move(previous, modsDir, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(aside, previous, StandardCopyOption.ATOMIC_MOVE);
+
+        } else {
+            return false;
+        }
+
+        String path = modsDir.resolveSibling(config.FILE_NAME).toString();
+        finish(Files.exists(Paths.get(path)) ? config.load(path) : config.empty(path), modsDir);
+        System.out.println("Finished an interrupted swap of the mods folder.");
+        return true;
+
+    }
+
+    /**
+     * Writes the marker into a folder that is about to be swapped in.
+     *
+     * @param list     the mod list that goes with the folder
+     * @param previous the mod list that goes with the folder it replaces
+     */
+    private static void writeMarker(Path dir, String list, String previous) throws IOException, ParseException {
+
+        JSONParser parser = new JSONParser();
+        JSONObject marker = new JSONObject();
+        marker.put("list", parser.parse(list));
+        marker.put("previous", parser.parse(previous));
+        storage.writeAtomically(dir.resolve(SWAP_MARKER), marker.toJSONString());
+
+    }
+
+    /**
+     * Saves the mod lists stored in the marker of the folder that was just
+     * swapped in, as cfg and as mcmodmanager.previous.json, and then removes
+     * the marker. Running this again after a crash saves the same lists.
+     */
+    private static void finish(config cfg, Path modsDir) throws Exception {
+
+        Path markerPath = modsDir.resolve(SWAP_MARKER);
+        JSONObject marker;
+        try (Reader reader = Files.newBufferedReader(markerPath, StandardCharsets.UTF_8)) {
+            marker = (JSONObject) new JSONParser().parse(reader);
+        }
+
+        storage.writeAtomically(previousConfig(modsDir), ((JSONObject) marker.get("previous")).toJSONString());
+        cfg.replaceWith((JSONObject) marker.get("list"));
+        cfg.flush();
+        Files.delete(markerPath);
+
+    }
+
+    /**
+     * @return true for the files a download leaves while it is running
+     */
+    private static boolean isUnfinished(String name) {
+        return name.endsWith(".part") || name.endsWith(".part.json") || name.endsWith(".link");
+    }
+
+    /**
+     * Moves the unfinished downloads at the top level of one folder into
+     * another, replacing any with the same name.
+     */
+    private static void moveUnfinished(Path from, Path to) throws IOException {
+
+        try (Stream<Path> entries = Files.list(from)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                if (isUnfinished(entry.getFileName().toString())) {
+                    Files.move(entry, to.resolve(entry.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+
+    }
+
+    private static void deleteTree(Path dir) throws IOException {
+
+        if (!Files.exists(dir, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+
+    }
+
+}
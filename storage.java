@@ -0,0 +1,297 @@
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Storage backends for the mod registry.
+ *
+ * The registry is always kept as a snapshot in the mcmodmanager.json format.
+ * The "json" backend rewrites that snapshot on every flush. The "journal"
+ * backend appends each change to mcmodmanager.json.journal instead, and only
+ * rewrites the snapshot (compacts) once the journal has grown past
+ * COMPACT_THRESHOLD entries.
+ *
+ * Snapshots are written to a temporary file, synced to disk and then renamed
+ * over the old snapshot, so a crash leaves either the old or the new file in
+ * place, never a half-written one.
+ *
+ * Every snapshot carries a sequence number, one higher than the snapshot it
+ * replaces, and every journal entry the sequence number of the snapshot it
+ * was written on top of. The journal is only removed after the new snapshot
+ * is in place, so a crash in between leaves entries that the snapshot
+ * already has. They are skipped on load rather than replayed: replaying an
+ * old add would bring back a mod that was removed after it, and an old
+ * update an update block that was already promoted.
+ */
+public class storage {
+
+    public static final String JSON = "json";
+    public static final String JOURNAL = "journal";
+
+    // Number of journal entries after which the journal is folded into the snapshot
+    public static final int COMPACT_THRESHOLD = 256;
+
+    // Key of the sequence number in snapshots and journal entries
+    public static final String SEQUENCE = "sequence";
+
+    /**
+     * Persists the changes made to a config.
+     */
+    public interface Backend {
+
+        /**
+         * Saves the given changes, which have already been applied to cfg.
+         */
+        void save(config cfg, List<JSONObject> changes) throws IOException;
+
+        /**
+         * Writes the whole config as a new snapshot and discards the journal.
+         */
+        void compact(config cfg) throws IOException;
+
+    }
+
+    /**
+     * What was read from disk: the snapshot and the changes journaled since it
+     * was written, in the order they were made.
+     */
+    public record Stored(JSONObject snapshot, List<JSONObject> journal) {
+    }
+
+    /**
+     * @return the backend for the given storage mode. Unknown or missing modes
+     *         fall back to the json backend.
+     */
+    public static Backend forMode(String mode, String path, int journalLength) {
+
+        if (JOURNAL.equals(mode)) {
+            return new JournalBackend(path, journalLength);
+        }
+        return new JsonBackend(path);
+
+    }
+
+    /**
+     * Reads the snapshot at path and, if there is one, its journal.
+     *
+     * Every journal entry ends with a newline. Anything after the last newline
+     * is the tail of an append that was interrupted by a crash, so it is
+     * ignored and cut off the file before anything new is appended. Entries
+     * written before the snapshot are left out (see sequenceOf).
+     */
+    public static Stored read(String path) throws IOException, ParseException {
+
+        JSONObject snapshot;
+        try (Reader reader = Files.newBufferedReader(Paths.get(path), StandardCharsets.UTF_8)) {
+            snapshot = (JSONObject) new JSONParser().parse(reader);
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException(path);
+        }
+
+        List<JSONObject> journal = new ArrayList<>();
+        Path journalPath = journalPath(path);
+        if (Files.exists(journalPath)) {
+
+            byte[] bytes = Files.readAllBytes(journalPath);
+            JSONParser parser = new JSONParser();
+            long sequence = sequenceOf(snapshot);
+
+            int lineStart = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] == '\n') {
+                    String line = new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                    if (!line.isBlank()) {
+                        JSONObject entry = (JSONObject) parser.parse(line);
+                        if (sequenceOf(entry) >= sequence) {
+                            journal.add(entry);
+                        }
+                    }
+                    lineStart = i + 1;
+                }
+            }
+
+            if (lineStart < bytes.length) {
+                try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(lineStart);
+                    channel.force(false);
+                }
+            }
+
+        }
+
+        return new Stored(snapshot, journal);
+
+    }
+
+    public static Path journalPath(String path) {
+        return Paths.get(path + ".journal");
+    }
+
+    /**
+     * @return the sequence number of a snapshot or journal entry. Files
+     *         written before sequence numbers were recorded count as 0.
+     */
+    public static long sequenceOf(JSONObject json) {
+        Object sequence = json.get(SEQUENCE);
+        return sequence instanceof Long ? (Long) sequence : 0;
+    }
+
+    /**
+     * Writes cfg as a new snapshot with the next sequence number, and then
+     * removes the journal, which the snapshot now covers.
+     */
+    private static void writeSnapshot(String path, config cfg) throws IOException {
+
+        cfg.nextSequence();
+        writeAtomically(Paths.get(path), cfg.toJSONString());
+        countWrite("snapshot", Files.size(Paths.get(path)));
+        Files.deleteIfExists(journalPath(path));
+
+    }
+
+    /**
+     * Writes contents to path so that the file is either fully replaced or
+     * left untouched: the data goes to a temporary file in the same directory,
+     * which is synced to disk and then atomically renamed over path.
+     */
+    public static void writeAtomically(Path path, String contents) throws IOException {
+
+        Path target = path.toAbsolutePath();
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents.getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        syncDirectory(target.getParent());
+
+    }
+
+    /**
+     * Syncs a directory so that a rename inside it survives a crash. Not every
+     * platform allows opening a directory, in which case this does nothing.
+     */
+    private static void syncDirectory(Path directory) {
+
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories can not be opened for syncing on this platform
+        }
+
+    }
+
+    /**
+     * Counts one write of the config file, either a whole snapshot or an
+     * append to the journal, for the metrics.
+     */
+    private static void countWrite(String kind, long bytes) {
+        metrics.count("config_writes_total", "kind", kind, 1);
+        metrics.count("config_bytes_written_total", "kind", kind, bytes);
+    }
+
+    /**
+     * Rewrites the whole snapshot on every save.
+     */
+    static class JsonBackend implements Backend {
+
+        private final String path;
+
+        JsonBackend(String path) {
+            this.path = path;
+        }
+
+        public void save(config cfg, List<JSONObject> changes) throws IOException {
+            compact(cfg);
+        }
+
+        public void compact(config cfg) throws IOException {
+
+            // Any journal left over from the journal backend is now part of the snapshot
+            writeSnapshot(path, cfg);
+
+        }
+
+    }
+
+    /**
+     * Appends every change to the journal as one line of JSON, tagged with the
+     * snapshot's sequence number, and compacts the journal into the snapshot
+     * once it has COMPACT_THRESHOLD entries.
+     */
+    static class JournalBackend implements Backend {
+
+        private final String path;
+        private int journalLength;
+
+        JournalBackend(String path, int journalLength) {
+            this.path = path;
+            this.journalLength = journalLength;
+        }
+
+        public void save(config cfg, List<JSONObject> changes) throws IOException {
+
+            if (journalLength + changes.size() >= COMPACT_THRESHOLD) {
+                compact(cfg);
+                return;
+            }
+
+            StringBuilder lines = new StringBuilder();
+            for (JSONObject change : changes) {
+                JSONObject entry = new JSONObject();
+                entry.putAll(change);
+                entry.put(SEQUENCE, cfg.sequence());
+                lines.append(entry.toJSONString()).append('\n');
+            }
+
+            try (FileChannel channel = FileChannel.open(journalPath(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                countWrite("journal", buffer.capacity());
+            }
+
+            journalLength += changes.size();
+
+        }
+
+        public void compact(config cfg) throws IOException {
+
+            writeSnapshot(path, cfg);
+            journalLength = 0;
+
+        }
+
+    }
+
+}
@@ -0,0 +1,100 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+public class tasks {
+
+    /**
+     * A unit of work that is run once for every item passed to runAll.
+     */
+    public interface Task<T, R> {
+        R run(T item) throws Exception;
+    }
+
+    /**
+     * The outcome of running a task on one item. Exactly one of value or error
+     * is set. nanos is how long the task took once it was allowed to start.
+     */
+    public record Result<R>(R value, Exception error, long nanos) {
+    }
+
+    /**
+     * Runs the task on every item concurrently, with at most maxConcurrency
+     * tasks in flight at any time. Results are returned in the same order as
+     * the items, regardless of the order in which the tasks finish.
+     *
+     * Tasks run on virtual threads when the JVM supports them, otherwise on a
+     * fixed pool of maxConcurrency platform threads.
+     *
+     * @param items          the items to process
+     * @param maxConcurrency the maximum number of tasks running at once
+     * @param task           the work to do for each item
+     * @return one Result per item, in item order
+     */
+    public static <T, R> List<Result<R>> runAll(List<T> items, int maxConcurrency, Task<T, R> task)
+            throws InterruptedException {
+
+        int limit = Math.max(1, maxConcurrency);
+        Semaphore permits = new Semaphore(limit);
+        List<Future<Result<R>>> futures = new ArrayList<>();
+
+        ExecutorService executor = newExecutor(limit);
+        try {
+
+            for (T item : items) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    long start = System.nanoTime();
+                    try {
+                        return new Result<R>(task.run(item), null, System.nanoTime() - start);
+                    } catch (Exception e) {
+                        return new Result<R>(null, e, System.nanoTime() - start);
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            // Collect the results in the order the items were given
+            List<Result<R>> results = new ArrayList<>();
+            for (Future<Result<R>> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(new Result<R>(null, new Exception(e.getCause()), 0));
+                }
+            }
+            return results;
+
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task if the running
+     * JVM has them (Java 21+). On older JVMs it falls back to a fixed pool so
+     * that no more than poolSize platform threads are ever created.
+     */
+    public static ExecutorService newExecutor(int poolSize) {
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(poolSize, runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+    }
+
+}